@@ -0,0 +1,231 @@
+package games;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH microbenchmarks for the game engine and bots, run on a fixed set of positions with seeded randomness, so that
+ * every run does the same work and runs can be compared.
+ *
+ * Built and run from the benchmarks module, see benchmarks/pom.xml. Takes the usual JMH options, e.g. a regular
+ * expression of the benchmarks to run, and always adds JMH's GC profiler, which reports the bytes allocated per
+ * operation alongside the time. On JDK 17 or later, where the benchmarks module builds the vector kernel too, the
+ * benchmarks run with the jdk.incubator.vector module, so that the "best" {@link BoardKernel} is the vector one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+  private static final long SEED = 2048;
+
+  private static final int ROLLOUTS_PER_BATCH = 250;
+
+  private static final int NUM_KERNEL_BOARDS = 4096;
+
+  // The first JDK whose vector API the vector kernel is built against, see the vector profile of benchmarks/pom.xml
+  private static final int VECTOR_JDK = 17;
+
+  /*
+   * Positions from the early, middle and late game, as grids of log values.
+   */
+  private static final byte[][] POSITIONS = {
+          {1, -1, -1, -1,
+                  -1, 2, -1, -1,
+                  -1, -1, -1, -1,
+                  -1, -1, 1, -1},
+          {6, 5, 3, 1,
+                  4, 3, 2, -1,
+                  2, 1, -1, -1,
+                  1, -1, -1, -1},
+          {10, 9, 7, 6,
+                  8, 7, 5, 3,
+                  4, 5, 2, 1,
+                  2, 1, 3, -1},
+  };
+
+  private GameModel[] positions;
+
+  private GameModel scratch;
+
+  private MonteCarloBot monteCarloBot;
+
+  private int nextPosition;
+
+  public static void main(String[] args) throws Exception {
+    OptionsBuilder options = new OptionsBuilder();
+    options.parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class);
+    if (javaVersion() >= VECTOR_JDK) {
+      options.jvmArgsAppend("--add-modules=jdk.incubator.vector");
+    }
+    new Runner(options.build()).run();
+  }
+
+  /**
+   * Starts every trial from the same positions, spawns and bot seed.
+   */
+  @Setup(Level.Trial)
+  public void setUp() {
+    positions = new GameModel[POSITIONS.length];
+    for (int i = 0; i < POSITIONS.length; i++) {
+      positions[i] = GameModel.fromGrid(Constants.GRID_SIZE, POSITIONS[i]);
+    }
+    scratch = new GameModel(Constants.GRID_SIZE, SEED);
+    monteCarloBot = new MonteCarloBot(new RandomBot(), null, MonteCarloBot.Allocation.UNIFORM,
+            Runtime.getRuntime().availableProcessors(), SEED);
+    nextPosition = 0;
+  }
+
+  @Benchmark
+  public boolean executeMove(Move move) {
+    nextPosition().copyInto(scratch);
+    return scratch.executeMove(move.direction);
+  }
+
+  @Benchmark
+  public int copyInto() {
+    nextPosition().copyInto(scratch);
+    return scratch.getScore();
+  }
+
+  @Benchmark
+  public boolean isThereAValidMove() {
+    return nextPosition().isThereAValidMove();
+  }
+
+  @Benchmark
+  public int getValidMoveMask() {
+    return nextPosition().getValidMoveMask();
+  }
+
+  @Benchmark
+  public int addNumber() {
+    nextPosition().copyInto(scratch);
+    scratch.addNumber();
+    return scratch.getScore();
+  }
+
+  @Benchmark
+  public GameModel copyOf() {
+    return GameModel.copyOf(nextPosition());
+  }
+
+  @Benchmark
+  public float computeScore() {
+    return MonteCarloBot.computeScore(nextPosition());
+  }
+
+  @Benchmark
+  public float computeEmptyCellScore() {
+    return MonteCarloBot.computeEmptyCellScore(nextPosition());
+  }
+
+  @Benchmark
+  public float computeGradientScore() {
+    return MonteCarloBot.computeGradientScore(nextPosition());
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Direction monteCarloGetNextMove() {
+    return monteCarloBot.getNextMove(nextPosition());
+  }
+
+  @Benchmark
+  public int[] sumCells(Kernel kernel) {
+    kernel.boardKernel.sumCells(kernel.boards, kernel.boards.length, kernel.cellSums, kernel.numEmptyCells);
+    return kernel.cellSums;
+  }
+
+  /**
+   * A Monte Carlo search task's worth of rollouts from the mid game position.
+   */
+  @Benchmark
+  public float[] rolloutBatch(Kernel kernel) {
+    return kernel.batch.run(positions[1].getBitBoard(), ROLLOUTS_PER_BATCH, kernel.random);
+  }
+
+  /**
+   * Returns the major version of the running JDK, e.g. 8 for 1.8.
+   */
+  private static int javaVersion() {
+    String version = System.getProperty("java.specification.version");
+    return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+  }
+
+  private GameModel nextPosition() {
+    GameModel position = positions[nextPosition];
+    nextPosition = nextPosition == positions.length - 1 ? 0 : nextPosition + 1;
+    return position;
+  }
+
+  /**
+   * The direction executeMove is benchmarked in, kept apart so that the other benchmarks only run once.
+   */
+  @State(Scope.Thread)
+  public static class Move {
+
+    @Param({"UP", "DOWN", "LEFT", "RIGHT"})
+    Direction direction;
+  }
+
+  /**
+   * The board kernel to benchmark: the scalar one, or the best one the JVM can run.
+   */
+  @State(Scope.Thread)
+  public static class Kernel {
+
+    @Param({"scalar", "best"})
+    String kernel;
+
+    BoardKernel boardKernel;
+
+    long[] boards;
+
+    int[] cellSums;
+
+    int[] numEmptyCells;
+
+    RolloutBatch batch;
+
+    RandomSource random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      boardKernel = kernel.equals("scalar") ? BoardKernel.SCALAR : BoardKernel.best();
+      // Boards with random cells, about a third of them empty
+      SplitMix64 boardRandom = new SplitMix64(SEED);
+      boards = new long[NUM_KERNEL_BOARDS];
+      for (int i = 0; i < boards.length; i++) {
+        for (int cell = 0; cell < BitBoard.NUM_CELLS; cell++) {
+          if (boardRandom.nextInt(3) != 0) {
+            boards[i] = BitBoard.setCell(boards[i], cell, 1 + boardRandom.nextInt(BitBoard.MAX_CELL_LOG));
+          }
+        }
+      }
+      cellSums = new int[boards.length];
+      numEmptyCells = new int[boards.length];
+      batch = new RolloutBatch(RolloutBatch.Policy.RANDOM, MonteCarloBot.MAX_MOVE_LOOKAHEAD, boardKernel);
+      random = new SplitMix64(SEED);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package games;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@link BoardKernel} that runs on SIMD lanes with the jdk.incubator.vector module, one board per lane. Boards
+ * past the last full vector are handled one at a time.
+ *
+ * Found by {@link BoardKernel#best} at run time, so that the rest of the game compiles and runs without the module.
+ * Compile it from src-vector with JDK 17 or later and --add-modules jdk.incubator.vector, and run with the same option.
+ */
+final class VectorBoardKernel extends BoardKernel {
+
+  private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+  // As many int lanes as SPECIES has long lanes, in half the bits
+  private static final VectorSpecies<Integer> INT_SPECIES =
+          VectorSpecies.of(int.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+  private static final long CELL_MASK = 0xFL;
+
+  private static final long BYTE_LOW_NIBBLES = 0x0F0F0F0F0F0F0F0FL;
+
+  VectorBoardKernel() {
+    // Fails here rather than on first use if the module is missing
+    SPECIES.length();
+  }
+
+  @Override
+  void sumCells(long[] boards, int numBoards, int[] cellSums, int[] numEmptyCells) {
+
+    LongVector one = LongVector.broadcast(SPECIES, 1);
+    int bound = SPECIES.loopBound(numBoards);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      LongVector board = LongVector.fromArray(SPECIES, boards, i);
+
+      // A cell is empty if none of its 4 bits is set, see BitBoard.emptyCellMask
+      LongVector occupied = board.or(board.lanewise(VectorOperators.LSHR, 1));
+      occupied = occupied.or(occupied.lanewise(VectorOperators.LSHR, 2));
+      LongVector empty = occupied.not().and(BitBoard.CELL_LOW_BITS);
+      // Count the bits by adding up nibbles into bytes, then the bytes into the lowest one
+      LongVector count = empty.and(BYTE_LOW_NIBBLES).add(empty.lanewise(VectorOperators.LSHR, 4).and(BYTE_LOW_NIBBLES));
+      count = count.add(count.lanewise(VectorOperators.LSHR, 8));
+      count = count.add(count.lanewise(VectorOperators.LSHR, 16));
+      count = count.add(count.lanewise(VectorOperators.LSHR, 32)).and(0xFF);
+
+      // Every cell adds 2 ^ its log value, which is 1 for empty cells, so those are taken off again at the end
+      LongVector sum = LongVector.zero(SPECIES);
+      for (int shift = 0; shift < 64; shift += 4) {
+        LongVector cell = board.lanewise(VectorOperators.LSHR, shift).and(CELL_MASK);
+        sum = sum.add(one.lanewise(VectorOperators.LSHL, cell));
+      }
+      sum = sum.sub(count);
+
+      // Narrowed to ints with the same number of lanes, so that they store straight into the results
+      ((IntVector) sum.convertShape(VectorOperators.L2I, INT_SPECIES, 0)).intoArray(cellSums, i);
+      ((IntVector) count.convertShape(VectorOperators.L2I, INT_SPECIES, 0)).intoArray(numEmptyCells, i);
+    }
+    sumCellsScalar(boards, i, numBoards, cellSums, numEmptyCells);
+  }
+
+  @Override
+  public String toString() {
+    return "vector (" + SPECIES + ")";
+  }
+}
@@ -0,0 +1,227 @@
+package games;
+
+/**
+ * Move tables and bit tricks for a 4x4 grid packed into a single long, 4 bits per cell.
+ *
+ * Cell n of the 1D grid (see {@link GameModel}) lives in bits [4n, 4n + 4) and holds its log value, with 0 meaning
+ * empty. Each row is a 16 bit chunk which indexes directly into the precomputed row tables, and columns are moved by
+ * transposing the board so that they become rows.
+ */
+final class BitBoard {
+
+  static final int SIZE = 4;
+
+  static final int NUM_CELLS = SIZE * SIZE;
+
+  // The largest log value a cell can hold (32768). Merges beyond this saturate.
+  static final int MAX_CELL_LOG = 15;
+
+  private static final long ROW_MASK = 0xFFFFL;
+
+  private static final long CELL_MASK = 0xFL;
+
+  // The lowest bit of every cell
+  static final long CELL_LOW_BITS = 0x1111111111111111L;
+
+  // Every possible row slid towards its first cell, and towards its last cell.
+  private static final char[] rowLeft = new char[1 << 16];
+  private static final char[] rowRight = new char[1 << 16];
+
+  // For every possible row, bit 0 is set if it can slide towards its first cell, and bit 1 if towards its last
+  private static final byte[] rowMoves = new byte[1 << 16];
+
+  static {
+    for (int row = 0; row < rowLeft.length; row++) {
+      rowLeft[row] = (char) slideRow(row);
+      rowRight[row] = (char) reverseRow(slideRow(reverseRow(row)));
+      rowMoves[row] = (byte) ((rowLeft[row] != row ? 1 : 0) | (rowRight[row] != row ? 2 : 0));
+    }
+  }
+
+  private BitBoard() {
+  }
+
+  /**
+   * Returns the board after moving in the given direction. The result equals the input if nothing moved.
+   */
+  static long move(long board, Direction direction) {
+    switch (direction) {
+      case UP:
+        return transpose(moveRows(transpose(board), rowLeft));
+      case DOWN:
+        return transpose(moveRows(transpose(board), rowRight));
+      case LEFT:
+        return moveRows(board, rowLeft);
+      case RIGHT:
+        return moveRows(board, rowRight);
+    }
+    return board;
+  }
+
+  /**
+   * Returns true if any move would change the board.
+   */
+  static boolean hasValidMove(long board) {
+    // On a full board a row can move left iff it can move right, and the same holds for columns.
+    return emptyCellMask(board) != 0
+            || moveRows(board, rowLeft) != board
+            || moveRows(transpose(board), rowLeft) != transpose(board);
+  }
+
+  /**
+   * Returns a mask with bit n set if the move with {@link Direction} ordinal n would change the board.
+   */
+  static int validMoveMask(long board) {
+    long transposed = transpose(board);
+    int rowBits = 0;
+    int columnBits = 0;
+    for (int shift = 0; shift < 64; shift += 16) {
+      rowBits |= rowMoves[(int) ((board >>> shift) & ROW_MASK)];
+      columnBits |= rowMoves[(int) ((transposed >>> shift) & ROW_MASK)];
+    }
+    // Columns slide up and down as rows of the transposed board, rows slide left and right
+    return columnBits << Direction.UP.ordinal() & 1 << Direction.UP.ordinal()
+            | (columnBits >> 1) << Direction.DOWN.ordinal() & 1 << Direction.DOWN.ordinal()
+            | rowBits << Direction.LEFT.ordinal() & 1 << Direction.LEFT.ordinal()
+            | (rowBits >> 1) << Direction.RIGHT.ordinal() & 1 << Direction.RIGHT.ordinal();
+  }
+
+  /**
+   * Returns a mask with the lowest bit of each empty cell set.
+   */
+  static long emptyCellMask(long board) {
+    long x = board | (board >>> 1);
+    x |= x >>> 2;
+    return ~x & CELL_LOW_BITS;
+  }
+
+  static int countEmptyCells(long board) {
+    return Long.bitCount(emptyCellMask(board));
+  }
+
+  static int getCell(long board, int index) {
+    return (int) (board >>> (index << 2) & CELL_MASK);
+  }
+
+  static long setCell(long board, int index, int logValue) {
+    int shift = index << 2;
+    return board & ~(CELL_MASK << shift) | (long) logValue << shift;
+  }
+
+  /**
+   * Sets the empty cell picked by 32 random bits to the given log value. The board must have an empty cell.
+   */
+  static long setRandomEmptyCell(long board, long bits32, int logValue) {
+    long emptyCells = emptyCellMask(board);
+    int index = RandomSource.boundedInt(bits32, Long.bitCount(emptyCells));
+    // drop the lowest empty cells until the chosen one is the lowest left
+    for (int i = 0; i < index; i++) {
+      emptyCells &= emptyCells - 1;
+    }
+    return setCell(board, Long.numberOfTrailingZeros(emptyCells) >>> 2, logValue);
+  }
+
+  /**
+   * Returns the sum of the values of all cells, in human readable format.
+   */
+  static int getCellSum(long board) {
+    int sum = 0;
+    for (; board != 0; board >>>= 4) {
+      int cell = (int) (board & CELL_MASK);
+      sum += cell == 0 ? 0 : 1 << cell;
+    }
+    return sum;
+  }
+
+  static int getHighestCellLog(long board) {
+    int highestCell = 0;
+    for (; board != 0; board >>>= 4) {
+      highestCell = Math.max(highestCell, (int) (board & CELL_MASK));
+    }
+    return highestCell;
+  }
+
+  /**
+   * Packs a grid of log values (-1 for empty) into a board.
+   */
+  static long pack(byte[] grid) {
+    long board = 0;
+    for (int i = 0; i < NUM_CELLS; i++) {
+      if (grid[i] > 0) {
+        board |= (long) Math.min(grid[i], MAX_CELL_LOG) << (i << 2);
+      }
+    }
+    return board;
+  }
+
+  /**
+   * Unpacks a board into a grid of log values, using -1 for empty cells.
+   */
+  static void unpack(long board, byte[] grid) {
+    for (int i = 0; i < NUM_CELLS; i++) {
+      int cell = (int) (board & CELL_MASK);
+      grid[i] = (byte) (cell == 0 ? -1 : cell);
+      board >>>= 4;
+    }
+  }
+
+  /**
+   * Mirrors the board along its main diagonal, turning columns into rows.
+   */
+  static long transpose(long board) {
+    long a1 = board & 0xF0F00F0FF0F00F0FL;
+    long a2 = board & 0x0000F0F00000F0F0L;
+    long a3 = board & 0x0F0F00000F0F0000L;
+    long a = a1 | (a2 << 12) | (a3 >>> 12);
+    long b1 = a & 0xFF00FF0000FF00FFL;
+    long b2 = a & 0x00FF00FF00000000L;
+    long b3 = a & 0x00000000FF00FF00L;
+    return b1 | (b2 >>> 24) | (b3 << 24);
+  }
+
+  private static long moveRows(long board, char[] table) {
+    return table[(int) (board & ROW_MASK)]
+            | (long) table[(int) ((board >>> 16) & ROW_MASK)] << 16
+            | (long) table[(int) ((board >>> 32) & ROW_MASK)] << 32
+            | (long) table[(int) (board >>> 48)] << 48;
+  }
+
+  private static int reverseRow(int row) {
+    return (row >>> 12) | ((row >>> 4) & 0x00F0) | ((row << 4) & 0x0F00) | ((row << 12) & 0xF000);
+  }
+
+  /**
+   * Slides a single packed row towards its first cell, following the same cell-by-cell rules as
+   * {@link GameModel}'s grid walk: each cell travels as far as it can, merging with every equal cell it meets.
+   */
+  private static int slideRow(int row) {
+    int[] cells = new int[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      cells[i] = (row >>> (i << 2)) & 0xF;
+    }
+
+    for (int i = 1; i < SIZE; i++) {
+      int currNumber = cells[i];
+      if (currNumber == 0) {
+        continue;
+      }
+      int nextIndexToCheck = i - 1;
+      while (nextIndexToCheck >= 0 && (cells[nextIndexToCheck] == 0 || cells[nextIndexToCheck] == currNumber)) {
+        cells[nextIndexToCheck + 1] = 0;
+        if (cells[nextIndexToCheck] == 0) {
+          cells[nextIndexToCheck] = currNumber;
+        } else {
+          currNumber = Math.min(currNumber + 1, MAX_CELL_LOG);
+          cells[nextIndexToCheck] = currNumber;
+        }
+        nextIndexToCheck--;
+      }
+    }
+
+    int result = 0;
+    for (int i = 0; i < SIZE; i++) {
+      result |= cells[i] << (i << 2);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,11 @@
+package games;
+
+/**
+ * Scores a board for a search, such as at the end of a rollout or at a leaf of a search tree. Higher is better.
+ *
+ * Scores only need to be comparable with each other, not with those of other evaluators.
+ */
+public interface BoardEvaluator {
+
+  float evaluate(GameModel model);
+}
@@ -0,0 +1,68 @@
+package games;
+
+/**
+ * Bulk operations on arrays of packed 4x4 boards (see {@link BitBoard}), for code that handles many boards at once
+ * like {@link RolloutBatch}.
+ *
+ * The {@link #best} kernel runs on SIMD lanes, one board per lane, when the JVM has the jdk.incubator.vector module
+ * (run with --add-modules jdk.incubator.vector) and the vector kernel in src-vector, which needs JDK 17 or later to
+ * compile, is on the class path. Otherwise it is the {@link #SCALAR} kernel, which does the same with plain loops.
+ * Both give exactly the same results.
+ */
+abstract class BoardKernel {
+
+  static final BoardKernel SCALAR = new BoardKernel() {
+
+    @Override
+    void sumCells(long[] boards, int numBoards, int[] cellSums, int[] numEmptyCells) {
+      sumCellsScalar(boards, 0, numBoards, cellSums, numEmptyCells);
+    }
+
+    @Override
+    public String toString() {
+      return "scalar";
+    }
+  };
+
+  private static final String VECTOR_KERNEL_CLASS = "games.VectorBoardKernel";
+
+  /**
+   * Returns the fastest kernel this JVM can run.
+   */
+  static BoardKernel best() {
+    return Best.INSTANCE;
+  }
+
+  /**
+   * Writes the sum of the values of each board's cells, as {@link BitBoard#getCellSum} counts them, and its number of
+   * empty cells.
+   */
+  abstract void sumCells(long[] boards, int numBoards, int[] cellSums, int[] numEmptyCells);
+
+  /**
+   * Does what {@link #sumCells} does for the boards from index start up to end, one board at a time.
+   */
+  static void sumCellsScalar(long[] boards, int start, int end, int[] cellSums, int[] numEmptyCells) {
+    for (int i = start; i < end; i++) {
+      cellSums[i] = BitBoard.getCellSum(boards[i]);
+      numEmptyCells[i] = BitBoard.countEmptyCells(boards[i]);
+    }
+  }
+
+  /**
+   * Holds the best kernel, so that the vector kernel is only looked for once a kernel is needed.
+   */
+  private static class Best {
+
+    private static final BoardKernel INSTANCE = load();
+
+    private static BoardKernel load() {
+      try {
+        return (BoardKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        // Not compiled in, or the vector module is missing
+        return SCALAR;
+      }
+    }
+  }
+}
@@ -7,7 +7,23 @@ public interface Bot {
 
   /**
    * Returns the desired direction for the next move based on the given model,
-   * which should be a copy of the game state.
+   * which should be a copy of the game state. May return null if there is no valid move.
    */
   Direction getNextMove( GameModel model );
+
+  /**
+   * Like {@link #getNextMove(GameModel)}, but also returns what the bot found out about each direction. Bots that
+   * don't score directions return the move alone.
+   */
+  default MoveDecision decideNextMove( GameModel model ) {
+    return new MoveDecision(getNextMove(model));
+  }
+
+  /**
+   * Like {@link #getNextMove(GameModel)}, but tries to decide within the given time budget and returns the best move
+   * found so far when it runs out. Bots that can't bound their search ignore the budget.
+   */
+  default MoveDecision getNextMoveWithin( GameModel model, long timeBudgetMillis ) {
+    return new MoveDecision(getNextMove(model));
+  }
 }
@@ -0,0 +1,272 @@
+package games;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Math.log;
+import static java.lang.Math.max;
+
+/**
+ * Compares two bots by playing them on pairs of games with the same seed, until a sequential probability ratio test
+ * (SPRT) on the paired score differences can tell whether one of them is better.
+ *
+ * Two one-sided tests run side by side: "A scores delta more than B" against "no difference", and "B scores delta more
+ * than A" against "no difference". The comparison stops as soon as either finds a difference, or both find none.
+ * Pairing the games cancels out most of the luck of the spawns, so this usually needs far fewer games than comparing
+ * two fixed-size {@link BotEvaluator} runs.
+ *
+ * Usage: BotComparison --a BOT --b BOT [--delta N] [--max-games N] [--grid N] [--seed N] [--threads N]
+ * where BOT is one of the bot names accepted by {@link BotEvaluator}.
+ */
+public class BotComparison {
+
+  private static final String USAGE =
+          "BotComparison --a BOT --b BOT [--delta N] [--max-games N] [--grid N] [--seed N] [--threads N]";
+
+  /**
+   * Smallest difference in average score worth detecting.
+   */
+  private static final double DEFAULT_DELTA = 500;
+
+  /**
+   * Chance of declaring a difference when there is none.
+   */
+  private static final double ALPHA = 0.05;
+
+  /**
+   * Chance of missing a difference of delta.
+   */
+  private static final double BETA = 0.05;
+
+  /**
+   * Play at least this many pairs before testing, so that the variance estimate means something.
+   */
+  private static final int MIN_PAIRS = 10;
+
+  private static final int DEFAULT_MAX_PAIRS = 1000;
+
+  private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The outcome of a comparison.
+   */
+  public enum Verdict {
+    A_IS_BETTER,
+    B_IS_BETTER,
+    NO_DIFFERENCE,
+    INCONCLUSIVE,
+  }
+
+  public static void main(String[] args) throws InterruptedException, ExecutionException {
+
+    String botA = null;
+    String botB = null;
+    double delta = DEFAULT_DELTA;
+    int maxPairs = DEFAULT_MAX_PAIRS;
+    int gridSize = Constants.GRID_SIZE;
+    long seed = System.nanoTime();
+    int pairThreads = 1;
+    for (int i = 0; i < args.length; i += 2) {
+      switch (args[i]) {
+        case "--a":
+          botA = CommandLine.value(args, i, USAGE);
+          break;
+        case "--b":
+          botB = CommandLine.value(args, i, USAGE);
+          break;
+        case "--delta":
+          delta = Double.parseDouble(CommandLine.value(args, i, USAGE));
+          break;
+        case "--max-games":
+          maxPairs = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        case "--grid":
+          gridSize = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        case "--seed":
+          seed = Long.parseLong(CommandLine.value(args, i, USAGE));
+          break;
+        case "--threads":
+          pairThreads = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        default:
+          throw CommandLine.usageError("Unknown option: " + args[i], USAGE);
+      }
+    }
+    if (botA == null || botB == null) {
+      throw CommandLine.usageError("Both --a and --b bots are required", USAGE);
+    }
+
+    System.out.println("A: " + botA + " B: " + botB + " Delta: " + delta + " Seed: " + seed);
+    Verdict verdict = compare(botA, botB, delta, maxPairs, gridSize, seed, max(1, pairThreads));
+    System.out.println("Verdict: " + verdict);
+  }
+
+  /**
+   * Plays pairs of games on the given number of threads until the test is decided or maxPairs pairs were played.
+   * Pair i is played with seed + i. Pairs are fed to the test in order, so the verdict only depends on the seed.
+   *
+   * @throws IllegalArgumentException if either bot name is unknown.
+   * @throws ExecutionException       if a game failed, once the other games have stopped.
+   */
+  public static Verdict compare(String botA, String botB, double delta, int maxPairs, int gridSize, long seed,
+                                int pairThreads) throws InterruptedException, ExecutionException {
+
+    BotEvaluator.checkBotName(botA);
+    BotEvaluator.checkBotName(botB);
+    // The two games of a pair are played one after the other, so each search gets all the cores left per pair
+    int searchThreads = max(1, NUM_CORES / pairThreads);
+    double[] differences = new double[maxPairs];
+    boolean[] done = new boolean[maxPairs];
+    // Set, under the lock of done, once any worker fails
+    boolean[] failed = new boolean[1];
+    AtomicInteger nextPair = new AtomicInteger();
+    AtomicBoolean stopped = new AtomicBoolean();
+
+    ExecutorService pairPool = Executors.newFixedThreadPool(pairThreads);
+    SearchExecutor searchExecutor = new SearchExecutor(NUM_CORES);
+    List<Future<?>> workers = new ArrayList<>();
+    for (int t = 0; t < pairThreads; t++) {
+      workers.add(pairPool.submit(() -> {
+        try {
+          for (int i = nextPair.getAndIncrement(); i < maxPairs && !stopped.get(); i = nextPair.getAndIncrement()) {
+            long botSeed = SplitMix64.seedOfStream(seed + i, 0);
+            Bot a = BotEvaluator.makeBot(botA, searchExecutor, searchThreads, botSeed);
+            Bot b = BotEvaluator.makeBot(botB, searchExecutor, searchThreads, botSeed);
+            Integer scoreA = playGame(a, new GameModel(gridSize, seed + i), stopped);
+            Integer scoreB = scoreA != null ? playGame(b, new GameModel(gridSize, seed + i), stopped) : null;
+            if (scoreB == null) {
+              return;
+            }
+            synchronized (done) {
+              differences[i] = scoreA - scoreB;
+              done[i] = true;
+              done.notifyAll();
+            }
+          }
+        } catch (RuntimeException | Error e) {
+          // Wakes up the test, which would otherwise wait for this worker's pair forever
+          synchronized (done) {
+            failed[0] = true;
+            done.notifyAll();
+          }
+          throw e;
+        }
+      }));
+    }
+
+    SequentialTest test = new SequentialTest(delta);
+    Verdict verdict = Verdict.INCONCLUSIVE;
+    try {
+      for (int i = 0; i < maxPairs && verdict == Verdict.INCONCLUSIVE; i++) {
+        synchronized (done) {
+          while (!done[i] && !failed[0]) {
+            done.wait();
+          }
+          if (!done[i]) {
+            break;
+          }
+        }
+        verdict = test.add(differences[i]);
+        System.out.println(test);
+      }
+    } finally {
+      // Games still in play stop after their current move, and must be done with the search executor before it closes
+      stopped.set(true);
+      pairPool.shutdown();
+      try {
+        pairPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } finally {
+        searchExecutor.close();
+      }
+    }
+    // Throws the failure of any worker
+    for (Future<?> worker : workers) {
+      worker.get();
+    }
+    return verdict;
+  }
+
+  /**
+   * Plays a single game on the given new model to completion, and returns its score. Returns null instead if the
+   * comparison is stopped before the game ends.
+   */
+  private static Integer playGame(Bot bot, GameModel model, AtomicBoolean stopped) {
+
+    model.addNumber();
+    model.addNumber();
+    while (model.isThereAValidMove()) {
+      if (stopped.get()) {
+        return null;
+      }
+      model.executeMove(bot.getNextMove(GameModel.copyOf(model)));
+      model.addNumber();
+    }
+    return model.getScore();
+  }
+
+  /**
+   * Two one-sided SPRTs on the mean of normally distributed paired differences, using the sample variance.
+   */
+  static class SequentialTest {
+
+    private final double delta;
+
+    // Accept "no difference" at or below this log likelihood ratio, and "difference" at or above the upper bound
+    private final double lowerBound = log(BETA / (1 - ALPHA));
+    private final double upperBound = log((1 - BETA) / ALPHA);
+
+    private int numPairs;
+    private double total;
+    private double totalSquared;
+
+    private double llrABetter;
+    private double llrBBetter;
+
+    SequentialTest(double delta) {
+      this.delta = delta;
+    }
+
+    /**
+     * Adds the score difference (A - B) of one more pair, and returns the verdict so far.
+     */
+    Verdict add(double difference) {
+      numPairs++;
+      total += difference;
+      totalSquared += difference * difference;
+      if (numPairs < MIN_PAIRS) {
+        return Verdict.INCONCLUSIVE;
+      }
+
+      double mean = total / numPairs;
+      double variance = max((totalSquared - numPairs * mean * mean) / (numPairs - 1), 1e-9);
+      // Log likelihood ratio of N(+-delta, variance) against N(0, variance), over all pairs
+      llrABetter = delta / variance * (total - numPairs * delta / 2);
+      llrBBetter = delta / variance * (-total - numPairs * delta / 2);
+
+      if (llrABetter >= upperBound) {
+        return Verdict.A_IS_BETTER;
+      }
+      if (llrBBetter >= upperBound) {
+        return Verdict.B_IS_BETTER;
+      }
+      if (llrABetter <= lowerBound && llrBBetter <= lowerBound) {
+        return Verdict.NO_DIFFERENCE;
+      }
+      return Verdict.INCONCLUSIVE;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Pairs: %d Mean A - B: %.1f LLR A better: %.2f LLR B better: %.2f (bounds %.2f, %.2f)",
+              numPairs, numPairs == 0 ? 0 : total / numPairs, llrABetter, llrBBetter, lowerBound, upperBound);
+    }
+  }
+}
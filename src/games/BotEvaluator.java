@@ -1,63 +1,364 @@
 package games;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static java.lang.Math.max;
-import static java.lang.Math.min;
 
 /**
- * Runs a bot for a fixed number of games, collecting statistics on its performance.
+ * Runs a bot for a number of games, collecting statistics on its performance.
+ *
+ * Games are played concurrently, each worker thread with its own bot. The cores are split between the game threads
+ * and the bots' own search threads, so that the two levels of parallelism don't oversubscribe the machine.
+ *
+ * Usage: BotEvaluator [--bot montecarlo|montecarlo-legal|adaptive|mcts|expectimax|random] [--games N] [--grid N] [--seed N]
+ *                     [--threads N] [--weights FILE] [--cache FILE] [--record FILE] [--export FILE]
+ *
+ * With a seed, game i spawns its numbers from seed + i, so runs with the same seed face the same spawn sequences.
+ * With weights, the montecarlo bots, mcts and expectimax score positions with that {@link NTupleNetwork}, which only
+ * scores 4x4 grids.
+ * With a cache, the bots play the moves stored in that {@link PositionCache} file, and store their own decisions in it
+ * for later runs. Games then no longer depend on their seed alone. A cache file only serves the bot, with the weights,
+ * that created it, and only serves decisions backed by enough simulations, so bots that don't simulate always search. With a record file, the games are appended to it,
+ * for {@link GameRecordReader} to replay. With an export file, every decision is appended to it as training data,
+ * along with the bot's scores of each direction (see {@link TrainingDataWriter}).
+ *
+ * Run with -Dgames.metrics=true to time each move and dump the bots' and the engine's {@link Metrics} as they play,
+ * and once more at the end.
  *
  * @author lpalm
  */
 public class BotEvaluator {
 
+  private static final String USAGE = "BotEvaluator [--bot montecarlo|montecarlo-legal|adaptive|mcts|expectimax|random]"
+          + " [--games N] [--grid N] [--seed N] [--threads N] [--weights FILE] [--cache FILE] [--record FILE]"
+          + " [--export FILE]";
+
   private static final int NUM_GAMES = 5;
 
-  public static void main(String[] args) {
+  private static final String DEFAULT_BOT = "montecarlo";
+
+  // The names makeBot knows
+  private static final List<String> BOT_NAMES = Arrays.asList("montecarlo", "montecarlo-legal", "adaptive", "mcts",
+          "expectimax", "random");
+
+  private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+
+  // Cached decisions backed by fewer simulations than this are searched again
+  private static final long MIN_CACHED_SAMPLES = 1000;
+
+  /**
+   * The outcome of a single game.
+   */
+  static class GameResult {
+
+    final int score;
+
+    final int highestCellLog;
+
+    final int numMoves;
+
+    final long nanos;
+
+    GameResult(int score, int highestCellLog, int numMoves, long nanos) {
+      this.score = score;
+      this.highestCellLog = highestCellLog;
+      this.numMoves = numMoves;
+      this.nanos = nanos;
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException, ExecutionException, IOException {
+
+    String botName = DEFAULT_BOT;
+    int numGames = NUM_GAMES;
+    int gridSize = Constants.GRID_SIZE;
+    Long seed = null;
+    int gameThreads = 1;
+    String weightsFile = null;
+    String cacheFile = null;
+    String recordFile = null;
+    String exportFile = null;
+    for (int i = 0; i < args.length; i += 2) {
+      switch (args[i]) {
+        case "--bot":
+          botName = CommandLine.value(args, i, USAGE);
+          break;
+        case "--games":
+          numGames = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        case "--grid":
+          gridSize = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        case "--seed":
+          seed = Long.parseLong(CommandLine.value(args, i, USAGE));
+          break;
+        case "--threads":
+          gameThreads = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        case "--weights":
+          weightsFile = CommandLine.value(args, i, USAGE);
+          break;
+        case "--cache":
+          cacheFile = CommandLine.value(args, i, USAGE);
+          break;
+        case "--record":
+          recordFile = CommandLine.value(args, i, USAGE);
+          break;
+        case "--export":
+          exportFile = CommandLine.value(args, i, USAGE);
+          break;
+        default:
+          throw CommandLine.usageError("Unknown option: " + args[i], USAGE);
+      }
+    }
+    if (numGames < 1) {
+      throw CommandLine.usageError("At least one game is needed, not " + numGames, USAGE);
+    }
+    checkBotName(botName);
+    if (weightsFile != null && gridSize != BitBoard.SIZE) {
+      throw new IllegalArgumentException("N-tuple weights only score 4x4 grids, not " + gridSize + "x" + gridSize);
+    }
+    gameThreads = max(1, Math.min(gameThreads, numGames));
+    int searchThreads = max(1, NUM_CORES / gameThreads);
 
-    Bot bot = MonteCarloBot.makeRandomBased();
+    // Mapped once, and shared by all the bots
+    NTupleNetwork network = weightsFile != null ? NTupleNetwork.load(Paths.get(weightsFile)) : null;
 
-    float totalScore = 0;
-    int maxScore = Integer.MIN_VALUE;
-    int minScore = Integer.MAX_VALUE;
-    int[] gamesByHighestCell = new int[16];
-    long startMillis = System.currentTimeMillis();
+    System.out.println("Bot: " + botName + " Games: " + numGames + " Grid: " + gridSize
+            + " Seed: " + seed + " Game threads: " + gameThreads + " Search threads per game: " + searchThreads
+            + " Weights: " + weightsFile + " Cache: " + cacheFile + " Record: " + recordFile
+            + " Export: " + exportFile);
 
-    for (int i = 0; i < NUM_GAMES; i++) {
-      GameModel model = new GameModel(4);
-      model.addNumber();
-      model.addNumber();
+    long startNanos = System.nanoTime();
+    List<GameResult> results;
+    long wallNanos;
+    // Decisions depend on the weights as much as on the bot
+    String cacheBotName = weightsFile != null ? botName + " " + Paths.get(weightsFile).getFileName() : botName;
+    try (PositionCache cache = cacheFile != null ? PositionCache.open(Paths.get(cacheFile), cacheBotName) : null;
+         GameRecordWriter recordWriter = recordFile != null ? new GameRecordWriter(Paths.get(recordFile)) : null;
+         TrainingDataWriter exportWriter = exportFile != null ? new TrainingDataWriter(Paths.get(exportFile)) : null) {
+      results = playGames(botName, network, cache, recordWriter, exportWriter, numGames, gridSize, seed, gameThreads,
+              searchThreads);
+      wallNanos = System.nanoTime() - startNanos;
+      System.out.println();
+      if (cache != null) {
+        System.out.println("Position cache: " + cache);
+      }
+    }
+    printReport(results, wallNanos);
+    if (Metrics.ENABLED) {
+      System.out.println(Metrics.report());
+    }
+  }
+
+  /**
+   * Throws an IllegalArgumentException if {@link #makeBot} doesn't know the bot name.
+   */
+  static void checkBotName(String name) {
+    if (!BOT_NAMES.contains(name)) {
+      throw new IllegalArgumentException("Unknown bot: " + name);
+    }
+  }
 
-      int numMoves = 0;
+  /**
+   * Creates a bot by name, searching on at most the given number of the executor's threads, and using the seed for
+   * any randomness of its own.
+   */
+  static Bot makeBot(String name, SearchExecutor executor, int searchThreads, long seed) {
+    return makeBot(name, null, executor, searchThreads, seed);
+  }
+
+  /**
+   * Creates a bot by name like {@link #makeBot(String, SearchExecutor, int, long)}, scoring positions with the given
+   * network if it isn't null.
+   */
+  static Bot makeBot(String name, NTupleNetwork network, SearchExecutor executor, int searchThreads, long seed) {
+    BoardEvaluator evaluator = network != null ? network : MonteCarloBot.DEFAULT_EVALUATOR;
+    switch (name) {
+      case "montecarlo":
+        return new MonteCarloBot(new RandomBot(), evaluator, null, MonteCarloBot.Allocation.UNIFORM, executor,
+                searchThreads, seed);
+      case "montecarlo-legal":
+        return new MonteCarloBot(new LegalRandomBot(), evaluator, null, MonteCarloBot.Allocation.UNIFORM, executor,
+                searchThreads, seed);
+      case "adaptive":
+        return new MonteCarloBot(new RandomBot(), evaluator, null, MonteCarloBot.Allocation.ADAPTIVE, executor,
+                searchThreads, seed);
+      case "mcts":
+        return new MctsBot(new RandomBot(), evaluator, executor, searchThreads, seed);
+      case "expectimax":
+        return new ExpectimaxBot(ExpectimaxBot.DEFAULT_MOVE_BUDGET_MS, new TranspositionTable(), network);
+      case "random":
+        return new RandomBot(new SplitMix64(seed));
+      default:
+        throw new IllegalArgumentException("Unknown bot: " + name);
+    }
+  }
+
+  /**
+   * Plays the games on the given number of threads, and returns their results in game order.
+   */
+  private static List<GameResult> playGames(String botName, NTupleNetwork network, PositionCache cache,
+                                            GameRecordWriter recordWriter, TrainingDataWriter exportWriter,
+                                            int numGames, int gridSize, Long seed, int gameThreads,
+                                            int searchThreads)
+          throws InterruptedException, ExecutionException {
+
+    GameResult[] results = new GameResult[numGames];
+    AtomicInteger nextGame = new AtomicInteger();
+    AtomicBoolean stopped = new AtomicBoolean();
+    ExecutorService gamePool = Executors.newFixedThreadPool(gameThreads);
+    // All the bots search on one executor, so that the games together use no more threads than there are cores
+    SearchExecutor searchExecutor = new SearchExecutor(NUM_CORES);
+    try {
+      List<Future<?>> workers = new ArrayList<>();
+      for (int t = 0; t < gameThreads; t++) {
+        workers.add(gamePool.submit(() -> {
+          for (int i = nextGame.getAndIncrement(); i < numGames && !stopped.get(); i = nextGame.getAndIncrement()) {
+            // A fresh bot per game, seeded from the game, so that each game's result only depends on its seed
+            long gameSeed = seed != null ? seed + i : ThreadLocalRandom.current().nextLong();
+            Bot bot = makeBot(botName, network, searchExecutor, searchThreads, SplitMix64.seedOfStream(gameSeed, 0));
+            if (cache != null) {
+              bot = new CachingBot(bot, cache, MIN_CACHED_SAMPLES);
+            }
+            results[i] = playGame(bot, new GameModel(gridSize, gameSeed), i, recordWriter, exportWriter,
+                    gameSeed);
+          }
+        }));
+      }
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } finally {
+      // If a game failed, the others stop once they are over, and must be done with the search executor before it closes
+      stopped.set(true);
+      gamePool.shutdown();
+      try {
+        gamePool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } finally {
+        searchExecutor.close();
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Plays a single game on the given new model to completion.
+   */
+  static GameResult playGame(Bot bot, GameModel model, int gameIndex) {
+    return playGame(bot, model, gameIndex, null, null, null);
+  }
+
+  /**
+   * Plays a single game on the given new model to completion, recording it and exporting its decisions with the
+   * writers that aren't null.
+   *
+   * @param seed the seed the model spawns from, or null if it isn't seeded.
+   */
+  static GameResult playGame(Bot bot, GameModel model, int gameIndex, GameRecordWriter recordWriter,
+                             TrainingDataWriter exportWriter, Long seed) {
+
+    long startNanos = System.nanoTime();
+    model.addNumber();
+    model.addNumber();
+    GameRecordWriter.Recording recording = recordWriter != null ? recordWriter.startGame(model, seed) : null;
+
+    int numMoves = 0;
+    try {
       while (model.isThereAValidMove()) {
-        Direction nextMove = bot.getNextMove(GameModel.copyOf(model));
+        long moveStartNanos = Metrics.ENABLED ? System.nanoTime() : 0;
+        MoveDecision decision = bot.decideNextMove(GameModel.copyOf(model));
+        if (Metrics.ENABLED) {
+          Metrics.recordMove(System.nanoTime() - moveStartNanos);
+        }
+        if (exportWriter != null) {
+          exportWriter.write(model, decision);
+        }
+        Direction nextMove = decision.getDirection();
         model.executeMove(nextMove);
         model.addNumber();
+        if (recording != null) {
+          recording.recordMove(nextMove, model);
+        }
         if (++numMoves % 250 == 0) {
-          System.out.println("Game: " + i + " Moves: " + numMoves);
+          System.out.println("Game: " + gameIndex + " Moves: " + numMoves);
         }
       }
-      int score = model.getScore();
-      totalScore += score;
-      minScore = min(minScore, score);
-      maxScore = max(maxScore, score);
+      if (recording != null) {
+        recording.finish();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new GameResult(model.getScore(), model.getHighestCellLog(), numMoves, System.nanoTime() - startNanos);
+  }
 
-      gamesByHighestCell[model.getHighestCellLog()]++;
+  private static void printReport(List<GameResult> results, long wallNanos) {
+
+    int numGames = results.size();
+    int[] scores = new int[numGames];
+    long totalMoves = 0;
+    long totalGameNanos = 0;
+    int[] gamesByHighestCell = new int[32];
+    for (int i = 0; i < numGames; i++) {
+      GameResult result = results.get(i);
+      scores[i] = result.score;
+      totalMoves += result.numMoves;
+      totalGameNanos += result.nanos;
+      gamesByHighestCell[result.highestCellLog]++;
+    }
+    Arrays.sort(scores);
+
+    double mean = 0;
+    for (int score : scores) {
+      mean += score / (double) numGames;
+    }
+    double variance = 0;
+    for (int score : scores) {
+      variance += (score - mean) * (score - mean) / max(1, numGames - 1);
     }
-    long timeMillis = System.currentTimeMillis() - startMillis;
-    long timePerGame = (long) (timeMillis / (float) NUM_GAMES + 0.5);
-    int averageScore = (int) (totalScore / NUM_GAMES + 0.5);
-    System.out.println();
+    // 95% confidence interval of the mean, using the normal approximation
+    double margin = 1.96 * Math.sqrt(variance / numGames);
+
+    long timePerGame = (long) (totalGameNanos / 1e6 / numGames + 0.5);
+    System.out.println("Time: " + timePerGame + "ms per game, " + (long) (wallNanos / 1e6 + 0.5) + "ms total");
+    System.out.println(String.format("Avg Score: %.0f (95%% CI %.0f - %.0f) Std Dev: %.0f",
+            mean, mean - margin, mean + margin, Math.sqrt(variance)));
+    System.out.println("Min Score: " + scores[0] + " P10: " + percentile(scores, 10) + " P25: " + percentile(scores, 25)
+            + " Median: " + percentile(scores, 50) + " P75: " + percentile(scores, 75)
+            + " P90: " + percentile(scores, 90) + " Max Score: " + scores[numGames - 1]);
+    System.out.println(String.format("Moves: %d (%.1f per game) Moves/sec: %.1f per game thread, %.1f overall",
+            totalMoves, totalMoves / (double) numGames, totalMoves / (totalGameNanos / 1e9),
+            totalMoves / (wallNanos / 1e9)));
 
-    System.out.println("Time: " + timePerGame + "ms Avg Score: " + averageScore + " Max Score: " + maxScore
-            + " Min Score: " + minScore);
     for (int i = 0; i < gamesByHighestCell.length; i++) {
-      int numGames = gamesByHighestCell[i];
-      if (numGames > 0) {
+      int numGamesWithCell = gamesByHighestCell[i];
+      if (numGamesWithCell > 0) {
         int humanReadableScore = 1 << i;
-        System.out.println(humanReadableScore + "'s:\t" + numGames);
+        System.out.println(String.format("%d's:\t%d\t(%.1f%%)", humanReadableScore, numGamesWithCell,
+                100.0 * numGamesWithCell / numGames));
       }
     }
-
   }
 
+  /**
+   * Returns the given percentile of the sorted values, using the nearest rank method.
+   */
+  private static int percentile(int[] sortedValues, int percentile) {
+    int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.length);
+    return sortedValues[Math.min(max(rank, 1), sortedValues.length) - 1];
+  }
 }
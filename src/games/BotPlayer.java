@@ -0,0 +1,96 @@
+package games;
+
+import javax.swing.*;
+import java.util.function.Consumer;
+
+/**
+ * Runs a bot for the Swing game on a background thread, so that its searches never block painting or key handling.
+ * Each decision is handed back to the Event Dispatch Thread to be played and rendered.
+ */
+public class BotPlayer implements AutoCloseable {
+
+  private final Bot bot;
+
+  // Receives the decisions, on the Event Dispatch Thread
+  private final Consumer<Direction> onDecision;
+
+  // The rest of the fields are guarded by this
+
+  // The position to decide on next, or null if there is none
+  private GameModel requested;
+
+  // Changes whenever the player is cancelled, so that decisions made before can be dropped
+  private long generation;
+
+  private boolean closed;
+
+  /**
+   * Creates a player and starts its thread, which is a daemon thread.
+   */
+  public BotPlayer(Bot bot, Consumer<Direction> onDecision) {
+    this.bot = bot;
+    this.onDecision = onDecision;
+    Thread thread = new Thread(this::run, "bot-player");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Asks for a decision on a copy of the given position, replacing any earlier request that hasn't been decided.
+   * The decision is passed to the consumer on the Event Dispatch Thread, unless it is cancelled first.
+   */
+  public synchronized void requestMove(GameModel position) {
+    requested = GameModel.copyOf(position);
+    notifyAll();
+  }
+
+  /**
+   * Drops the pending request, and the decision being searched, for instance because the game has been restarted.
+   */
+  public synchronized void cancel() {
+    requested = null;
+    generation++;
+  }
+
+  /**
+   * Stops the thread once it has finished its current search.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    cancel();
+    notifyAll();
+  }
+
+  private void run() {
+    while (true) {
+      GameModel position;
+      long positionGeneration;
+      synchronized (this) {
+        try {
+          while (!closed && requested == null) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (closed) {
+          return;
+        }
+        positionGeneration = generation;
+        position = requested;
+        requested = null;
+      }
+
+      Direction direction = bot.getNextMove(position);
+      SwingUtilities.invokeLater(() -> {
+        synchronized (this) {
+          if (positionGeneration != generation) {
+            return;
+          }
+        }
+        onDecision.accept(direction);
+      });
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package games;
+
+/**
+ * Plays the move a {@link PositionCache} holds for a position when there is one, and otherwise asks another bot and
+ * stores its decision. With a cache kept across runs, the positions that come up again and again, mostly openings,
+ * cost a lookup rather than a search.
+ *
+ * Moves found in the cache are played without per-direction scores. Only moves that are valid on the position are
+ * stored or played, so a bot that returns a move that changes nothing is asked again rather than served it forever.
+ */
+public class CachingBot implements Bot {
+
+  private final Bot bot;
+
+  private final PositionCache cache;
+
+  // Decisions backed by fewer simulations than this are searched again
+  private final long minSamples;
+
+  public CachingBot(Bot bot, PositionCache cache) {
+    this(bot, cache, 0);
+  }
+
+  /**
+   * @param minSamples the number of simulations a cached decision needs to be played. Decisions of bots that don't
+   *                   simulate count as none.
+   */
+  public CachingBot(Bot bot, PositionCache cache, long minSamples) {
+    this.bot = bot;
+    this.cache = cache;
+    this.minSamples = minSamples;
+  }
+
+  @Override
+  public Direction getNextMove(GameModel model) {
+    return decideNextMove(model).getDirection();
+  }
+
+  @Override
+  public MoveDecision decideNextMove(GameModel model) {
+    long entry = cache.probe(model, minSamples);
+    if (entry != 0) {
+      return new MoveDecision(Direction.VALUES[PositionCache.getMove(entry)]);
+    }
+    // The bot may change the model it is given
+    GameModel position = GameModel.copyOf(model);
+    MoveDecision decision = bot.decideNextMove(model);
+    cache.store(position, decision);
+    return decision;
+  }
+
+  @Override
+  public MoveDecision getNextMoveWithin(GameModel model, long timeBudgetMillis) {
+    long entry = cache.probe(model, minSamples);
+    if (entry != 0) {
+      return new MoveDecision(Direction.VALUES[PositionCache.getMove(entry)]);
+    }
+    GameModel position = GameModel.copyOf(model);
+    MoveDecision decision = bot.getNextMoveWithin(model, timeBudgetMillis);
+    cache.store(position, decision);
+    return decision;
+  }
+}
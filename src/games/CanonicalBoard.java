@@ -0,0 +1,84 @@
+package games;
+
+import java.util.Arrays;
+
+/**
+ * A position reduced to its canonical form under the {@link Symmetry symmetries} of the grid, for use as a cache key.
+ * All 8 mirror images of a position give equal keys, so a cache keyed this way holds each result once rather than up
+ * to 8 times.
+ *
+ * Moves are stored for the canonical form, and mapped back to the position a key was made from with
+ * {@link #toOriginal}.
+ */
+public final class CanonicalBoard {
+
+  private final int gridSize;
+
+  // The canonical form, packed for 4x4 grids and as a grid of log values otherwise
+  private final long board;
+
+  private final byte[] grid;
+
+  // Turns the original position into the canonical form
+  private final Symmetry symmetry;
+
+  private CanonicalBoard(int gridSize, long board, byte[] grid, Symmetry symmetry) {
+    this.gridSize = gridSize;
+    this.board = board;
+    this.grid = grid;
+    this.symmetry = symmetry;
+  }
+
+  /**
+   * Returns the canonical form of the model's grid.
+   */
+  public static CanonicalBoard of(GameModel model) {
+    int gridSize = model.getGridSize();
+    if (gridSize == BitBoard.SIZE) {
+      long board = model.getBitBoard();
+      Symmetry symmetry = Symmetry.canonicalOf(board);
+      return new CanonicalBoard(gridSize, symmetry.apply(board), null, symmetry);
+    }
+    byte[] grid = model.getGrid();
+    Symmetry symmetry = Symmetry.canonicalOf(grid, gridSize);
+    return new CanonicalBoard(gridSize, 0, symmetry.apply(grid, gridSize), symmetry);
+  }
+
+  /**
+   * Returns the symmetry that turns the original position into the canonical form.
+   */
+  public Symmetry getSymmetry() {
+    return symmetry;
+  }
+
+  /**
+   * Returns the move on the canonical form that does what the given move does on the original position.
+   */
+  public Direction toCanonical(Direction direction) {
+    return symmetry.apply(direction);
+  }
+
+  /**
+   * Returns the move on the original position that does what the given move does on the canonical form.
+   */
+  public Direction toOriginal(Direction direction) {
+    return symmetry.inverse().apply(direction);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof CanonicalBoard)) {
+      return false;
+    }
+    CanonicalBoard other = (CanonicalBoard) o;
+    return gridSize == other.gridSize && board == other.board && Arrays.equals(grid, other.grid);
+  }
+
+  @Override
+  public int hashCode() {
+    return grid != null ? Arrays.hashCode(grid) : Long.hashCode(SplitMix64.mix(board));
+  }
+}
@@ -0,0 +1,27 @@
+package games;
+
+/**
+ * Argument checks shared by the command line tools, whose options all come as a flag followed by its value.
+ * Mistakes are reported as an IllegalArgumentException that ends with the tool's usage line.
+ */
+final class CommandLine {
+
+  private CommandLine() {
+  }
+
+  /**
+   * Returns the value of the flag at index i.
+   *
+   * @throws IllegalArgumentException if the flag is the last argument, and so has no value.
+   */
+  static String value(String[] args, int i, String usage) {
+    if (i + 1 >= args.length) {
+      throw usageError("Missing value for option: " + args[i], usage);
+    }
+    return args[i + 1];
+  }
+
+  static IllegalArgumentException usageError(String message, String usage) {
+    return new IllegalArgumentException(message + System.lineSeparator() + "Usage: " + usage);
+  }
+}
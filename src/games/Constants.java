@@ -9,7 +9,5 @@ public class Constants {
 
   public static final double LIKELIHOOD_OF_4 = 0.1;
 
-  public static final int BOT_DELAY_MS = 1;
-
   public static final int WINNING_POWER_OF_2 = 11; // 2048
 }
@@ -0,0 +1,315 @@
+package games;
+
+import static games.Constants.LIKELIHOOD_OF_4;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.pow;
+
+/**
+ * Searches the game tree, alternating between the player's moves and the random tile spawns, and picks the move with
+ * the best expected heuristic score. Searches deeper and deeper until its time budget for the move runs out.
+ *
+ * Only 4x4 boards are searched. Other sizes fall back to the first valid move.
+ *
+ * Leaves are scored with a hand-tuned row heuristic, or with an {@link NTupleNetwork} if the bot is given one.
+ */
+public class ExpectimaxBot implements Bot {
+
+  /**
+   * Default time a single move may take.
+   */
+  static final long DEFAULT_MOVE_BUDGET_MS = 10;
+
+  /**
+   * Deepest search to attempt, in moves, regardless of the time budget.
+   */
+  private static final int MAX_DEPTH = 8;
+
+  /**
+   * Stop expanding chance nodes once the probability of reaching them falls below this.
+   */
+  private static final float CUMULATIVE_PROBABILITY_CUTOFF = 0.0001f;
+
+  /**
+   * Only check the clock every this many nodes.
+   */
+  private static final int NODES_PER_TIME_CHECK = 1024;
+
+  /*
+   * Weights of the row heuristic, see https://github.com/nneonneo/2048-ai
+   */
+  private static final float LOST_PENALTY = 200000f;
+  private static final float MONOTONICITY_POWER = 4f;
+  private static final float MONOTONICITY_WEIGHT = 47f;
+  private static final float SUM_POWER = 3.5f;
+  private static final float SUM_WEIGHT = 11f;
+  private static final float MERGES_WEIGHT = 700f;
+  private static final float EMPTY_WEIGHT = 270f;
+
+  /**
+   * Score of a lost board when a network scores the leaves. Network scores can be negative, so unlike with the row
+   * heuristic, zero isn't below every live board.
+   */
+  private static final float LOST_SCORE_WITH_NETWORK = -1e9f;
+
+  private static final float PROBABILITY_OF_2 = (float) (1 - LIKELIHOOD_OF_4);
+  private static final float PROBABILITY_OF_4 = (float) LIKELIHOOD_OF_4;
+
+  // Heuristic score of every possible packed row
+  private static final float[] rowScores = new float[1 << 16];
+
+  static {
+    for (int row = 0; row < rowScores.length; row++) {
+      rowScores[row] = computeRowScore(row);
+    }
+  }
+
+  private final long moveBudgetNanos;
+
+  // Caches the scores of chance nodes across searches
+  private final TranspositionTable transpositionTable;
+
+  // Scores the leaves instead of the row heuristic, or null
+  private final NTupleNetwork network;
+
+  public ExpectimaxBot() {
+    this(DEFAULT_MOVE_BUDGET_MS);
+  }
+
+  public ExpectimaxBot(long moveBudgetMillis) {
+    this(moveBudgetMillis, new TranspositionTable());
+  }
+
+  public ExpectimaxBot(long moveBudgetMillis, TranspositionTable transpositionTable) {
+    this(moveBudgetMillis, transpositionTable, null);
+  }
+
+  /**
+   * @param network scores the leaves of the search, or null to use the row heuristic. The transposition table must
+   *                not be shared with bots that score leaves differently.
+   */
+  public ExpectimaxBot(long moveBudgetMillis, TranspositionTable transpositionTable, NTupleNetwork network) {
+    this.moveBudgetNanos = moveBudgetMillis * 1_000_000;
+    this.transpositionTable = transpositionTable;
+    this.network = network;
+  }
+
+  public TranspositionTable getTranspositionTable() {
+    return transpositionTable;
+  }
+
+  @Override
+  public Direction getNextMove(GameModel model) {
+
+    return search(model, moveBudgetNanos);
+  }
+
+  @Override
+  public MoveDecision getNextMoveWithin(GameModel model, long timeBudgetMillis) {
+
+    return new MoveDecision(search(model, timeBudgetMillis * 1_000_000));
+  }
+
+  private Direction search(GameModel model, long budgetNanos) {
+
+    if (model.getGridSize() != BitBoard.SIZE) {
+      return firstValidMove(model);
+    }
+
+    long board = model.getBitBoard();
+    Search search = new Search(System.nanoTime() + budgetNanos, transpositionTable, network);
+    Direction bestDirection = null;
+
+    for (int depth = 1; depth <= MAX_DEPTH; depth++) {
+      Direction bestAtDepth = search.searchRoot(board, depth);
+      if (search.aborted) {
+        break;
+      }
+      bestDirection = bestAtDepth;
+    }
+
+    return bestDirection != null ? bestDirection : firstValidMove(model);
+  }
+
+  private static Direction firstValidMove(GameModel model) {
+    for (Direction direction : Direction.VALUES) {
+      if (GameModel.copyOf(model).executeMove(direction)) {
+        return direction;
+      }
+    }
+    return Direction.UP;
+  }
+
+  /**
+   * Heuristic score of a board, higher is better.
+   */
+  static float computeScore(long board) {
+    long transposed = BitBoard.transpose(board);
+    float score = 0;
+    for (int shift = 0; shift < 64; shift += 16) {
+      score += rowScores[(int) ((board >>> shift) & 0xFFFF)];
+      score += rowScores[(int) ((transposed >>> shift) & 0xFFFF)];
+    }
+    return score;
+  }
+
+  private static float computeRowScore(int row) {
+    int[] cells = new int[BitBoard.SIZE];
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = (row >>> (i << 2)) & 0xF;
+    }
+
+    float sum = 0;
+    int numEmptyCells = 0;
+    int merges = 0;
+    int previous = 0;
+    int counter = 0;
+    for (int cell : cells) {
+      sum += pow(cell, SUM_POWER);
+      if (cell == 0) {
+        numEmptyCells++;
+      } else {
+        if (previous == cell) {
+          counter++;
+        } else if (counter > 0) {
+          merges += 1 + counter;
+          counter = 0;
+        }
+        previous = cell;
+      }
+    }
+    if (counter > 0) {
+      merges += 1 + counter;
+    }
+
+    float monotonicityLeft = 0;
+    float monotonicityRight = 0;
+    for (int i = 1; i < cells.length; i++) {
+      float previousPower = (float) pow(cells[i - 1], MONOTONICITY_POWER);
+      float currentPower = (float) pow(cells[i], MONOTONICITY_POWER);
+      if (cells[i - 1] > cells[i]) {
+        monotonicityLeft += previousPower - currentPower;
+      } else {
+        monotonicityRight += currentPower - previousPower;
+      }
+    }
+
+    // The penalty keeps the score of every live board well above the zero score of a lost one
+    return LOST_PENALTY
+            + EMPTY_WEIGHT * numEmptyCells
+            + MERGES_WEIGHT * merges
+            - MONOTONICITY_WEIGHT * min(monotonicityLeft, monotonicityRight)
+            - SUM_WEIGHT * sum;
+  }
+
+  /**
+   * The state of a single move's search.
+   */
+  private static class Search {
+
+    private final long deadlineNanos;
+
+    private final TranspositionTable transpositionTable;
+
+    private final NTupleNetwork network;
+
+    // Score of a board with no valid moves, below that of any live board
+    private final float lostScore;
+
+    private int nodesUntilTimeCheck = NODES_PER_TIME_CHECK;
+
+    boolean aborted;
+
+    Search(long deadlineNanos, TranspositionTable transpositionTable, NTupleNetwork network) {
+      this.deadlineNanos = deadlineNanos;
+      this.transpositionTable = transpositionTable;
+      this.network = network;
+      this.lostScore = network != null ? LOST_SCORE_WITH_NETWORK : 0;
+    }
+
+    /**
+     * Returns the best move found searching to the given depth, or null if there are no valid moves.
+     */
+    Direction searchRoot(long board, int depth) {
+      float bestScore = Float.NEGATIVE_INFINITY;
+      Direction bestDirection = null;
+      for (Direction direction : Direction.VALUES) {
+        long movedBoard = BitBoard.move(board, direction);
+        if (movedBoard == board) {
+          continue;
+        }
+        float score = scoreChanceNode(movedBoard, depth - 1, 1f);
+        if (score > bestScore) {
+          bestScore = score;
+          bestDirection = direction;
+        }
+      }
+      return bestDirection;
+    }
+
+    /**
+     * Expected score of a board that is waiting for a tile to spawn.
+     */
+    private float scoreChanceNode(long board, int depth, float probability) {
+
+      if (depth == 0 || probability < CUMULATIVE_PROBABILITY_CUTOFF || isOutOfTime()) {
+        return scoreLeaf(board);
+      }
+
+      long entry = transpositionTable.probe(board, depth);
+      if (entry != 0) {
+        return TranspositionTable.getValue(entry);
+      }
+
+      long emptyCells = BitBoard.emptyCellMask(board);
+      int numEmptyCells = Long.bitCount(emptyCells);
+      if (numEmptyCells == 0) {
+        return scoreLeaf(board);
+      }
+      float cellProbability = probability / numEmptyCells;
+
+      float totalScore = 0;
+      for (; emptyCells != 0; emptyCells &= emptyCells - 1) {
+        int index = Long.numberOfTrailingZeros(emptyCells) >>> 2;
+        totalScore += PROBABILITY_OF_2
+                * scoreMaxNode(BitBoard.setCell(board, index, 1), depth, cellProbability * PROBABILITY_OF_2);
+        totalScore += PROBABILITY_OF_4
+                * scoreMaxNode(BitBoard.setCell(board, index, 2), depth, cellProbability * PROBABILITY_OF_4);
+      }
+      float score = totalScore / numEmptyCells;
+      if (!aborted) {
+        transpositionTable.store(board, score, depth, null);
+      }
+      return score;
+    }
+
+    /**
+     * Score of the best move from a board, or the lost score if the game is lost.
+     */
+    private float scoreMaxNode(long board, int depth, float probability) {
+      float bestScore = Float.NEGATIVE_INFINITY;
+      for (Direction direction : Direction.VALUES) {
+        long movedBoard = BitBoard.move(board, direction);
+        if (movedBoard != board) {
+          bestScore = max(bestScore, scoreChanceNode(movedBoard, depth - 1, probability));
+        }
+      }
+      return bestScore != Float.NEGATIVE_INFINITY ? bestScore : lostScore;
+    }
+
+    private float scoreLeaf(long board) {
+      return network != null ? network.evaluate(board) : computeScore(board);
+    }
+
+    private boolean isOutOfTime() {
+      if (aborted) {
+        return true;
+      }
+      if (--nodesUntilTimeCheck <= 0) {
+        nodesUntilTimeCheck = NODES_PER_TIME_CHECK;
+        aborted = System.nanoTime() > deadlineNanos;
+      }
+      return aborted;
+    }
+  }
+}
@@ -1,20 +1,28 @@
 package games;
 
-import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
-import static games.Constants.BOT_DELAY_MS;
 import static games.Constants.GRID_SIZE;
 
 /**
  * A game manager that starts a game and responds to player actions.
+ *
+ * Usage: Game [--cache FILE] [--record FILE]
+ *
+ * With a cache, bot mode plays the moves stored in that {@link PositionCache} file, and stores its own decisions in it
+ * for later sessions. With a record file, every game played is appended to it, for {@link GameRecordReader} to replay.
  */
 // TODO: Further decompose this class into one that is aware of the game rules and one to process inputs/rendering
 public class Game
         extends KeyAdapter {
 
+  private static final String USAGE = "Game [--cache FILE] [--record FILE]";
+
   // The current running state of the game
   private GameState state = GameState.RUNNING;
 
@@ -27,6 +35,15 @@ public class Game
   // Whether the game is currently running in bot mode or not
   private boolean botMode;
 
+  // Plays in bot mode, searching off the Event Dispatch Thread. One bot serves every game.
+  private final BotPlayer botPlayer;
+
+  // Records the games, or null if there is no record file or it can't be opened
+  private final GameRecordWriter recordWriter;
+
+  // The current game's recording, or null
+  private GameRecordWriter.Recording recording;
+
   // TODO: does this belong in the model as well?
   public enum GameState {
     RUNNING,
@@ -36,6 +53,19 @@ public class Game
 
   }
 
+  public Game() {
+    this(null, null);
+  }
+
+  /**
+   * @param positionCacheFile the position cache for bot mode, or null to always search.
+   * @param gameRecordFile    the file to append the games to, or null not to record them.
+   */
+  public Game(Path positionCacheFile, Path gameRecordFile) {
+    botPlayer = new BotPlayer(makeBot(positionCacheFile), this::onBotMove);
+    recordWriter = openRecordWriter(gameRecordFile);
+  }
+
   public GameModel getGameModel() {
     return model;
   }
@@ -55,10 +85,15 @@ public class Game
   }
 
   private void startNewGame() {
+    botPlayer.cancel();
     state = GameState.RUNNING;
+    finishRecording();
     model = new GameModel(GRID_SIZE);
     model.addNumber();
     model.addNumber();
+    if (recordWriter != null) {
+      recording = recordWriter.startGame(model, null);
+    }
     gameWindow.repaint();
 
     if (botMode) {
@@ -67,18 +102,20 @@ public class Game
   }
 
   private void startBot() {
-    final Bot bot = MonteCarloBot.makeRandomBased();
-
-    final Timer timer = new Timer(BOT_DELAY_MS, null);
-    timer.addActionListener(actionEvent -> {
-      if (state == GameState.RUNNING && botMode) {
-        executeAction(bot.getNextMove(GameModel.copyOf(model)));
-      } else {
-        timer.stop();
-      }
-    });
+    if (state == GameState.RUNNING && botMode) {
+      botPlayer.requestMove(model);
+    }
+  }
 
-    timer.start();
+  /**
+   * Plays a move the bot decided on, and asks it for the next one.
+   */
+  private void onBotMove(Direction direction) {
+    if (direction == null || state != GameState.RUNNING || !botMode) {
+      return;
+    }
+    executeAction(direction);
+    startBot();
   }
 
   private void executeAction(Direction direction) {
@@ -87,15 +124,20 @@ public class Game
 
     if (model.hasWon() && !botMode) {
       state = GameState.WON;
-      gameWindow.repaint();
     } else {
-      gameWindow.repaint();
       model.addNumber();
       if (!model.isThereAValidMove()) {
         state = GameState.LOST;
       }
-      gameWindow.repaint();
     }
+    if (recording != null) {
+      recording.recordMove(direction, model);
+      if (state != GameState.RUNNING) {
+        finishRecording();
+      }
+    }
+    // Repaints are only carried out once this event has been handled, so one is enough
+    gameWindow.repaint();
   }
 
   @Override
@@ -103,7 +145,11 @@ public class Game
     if (keyEvent.getKeyCode() == KeyEvent.VK_B) {
       botMode = !botMode;
       System.out.println("Bot mode: " + botMode);
-      startBot();
+      if (botMode) {
+        startBot();
+      } else {
+        botPlayer.cancel();
+      }
     } else if (keyEvent.getKeyCode() == KeyEvent.VK_SPACE) {
       startNewGame();
     } else if (state == GameState.RUNNING && !botMode) {
@@ -127,8 +173,79 @@ public class Game
   }
 
 
+  private void finishRecording() {
+    if (recording == null) {
+      return;
+    }
+    try {
+      recording.finish();
+    } catch (IOException e) {
+      System.out.println("Could not record the game: " + e.getMessage());
+    }
+    recording = null;
+  }
+
+  /**
+   * Returns the bot for bot mode, which plays from the position cache if there is one and it can be opened.
+   */
+  private static Bot makeBot(Path positionCacheFile) {
+    Bot bot = MonteCarloBot.makeRandomBased();
+    if (positionCacheFile == null) {
+      return bot;
+    }
+    PositionCache cache;
+    try {
+      cache = PositionCache.open(positionCacheFile, "montecarlo");
+    } catch (IOException e) {
+      System.out.println("Playing without the position cache: " + e.getMessage());
+      return bot;
+    }
+    closeOnExit(cache, positionCacheFile);
+    return new CachingBot(bot, cache);
+  }
+
+  private static GameRecordWriter openRecordWriter(Path gameRecordFile) {
+    if (gameRecordFile == null) {
+      return null;
+    }
+    GameRecordWriter writer;
+    try {
+      writer = new GameRecordWriter(gameRecordFile);
+    } catch (IOException e) {
+      System.out.println("Playing without recording games: " + e.getMessage());
+      return null;
+    }
+    // Games still being played when the window closes are dropped, finished ones are written out
+    closeOnExit(writer, gameRecordFile);
+    return writer;
+  }
+
+  private static void closeOnExit(AutoCloseable closeable, Path file) {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        closeable.close();
+      } catch (Exception e) {
+        System.out.println("Could not close " + file + ": " + e.getMessage());
+      }
+    }));
+  }
+
   public static void main(String[] args) {
-    Game game = new Game();
+    Path positionCacheFile = null;
+    Path gameRecordFile = null;
+    for (int i = 0; i < args.length; i += 2) {
+      switch (args[i]) {
+        case "--cache":
+          positionCacheFile = Paths.get(CommandLine.value(args, i, USAGE));
+          break;
+        case "--record":
+          gameRecordFile = Paths.get(CommandLine.value(args, i, USAGE));
+          break;
+        default:
+          throw CommandLine.usageError("Unknown option: " + args[i], USAGE);
+      }
+    }
+    Game game = new Game(positionCacheFile, gameRecordFile);
     game.runGame();
   }
 }
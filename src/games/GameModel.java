@@ -1,7 +1,6 @@
 package games;
 
 import java.util.Arrays;
-import java.util.concurrent.ThreadLocalRandom;
 
 import static games.Constants.LIKELIHOOD_OF_4;
 import static games.Constants.WINNING_POWER_OF_2;
@@ -19,6 +18,8 @@ public class GameModel {
 
   private static final NumberPlacer numberPlacer = new NumberPlacer();
 
+  private static final int ALL_MOVES_MASK = (1 << Direction.VALUES.length) - 1;
+
   /*
      * A 1D representation of the log values of a corresponding 2D grid.
      * grid[n] gives the log value of co-ordinate (n%gridSize, n/gridSize)
@@ -33,45 +34,158 @@ public class GameModel {
      */
   private byte[] grid;
 
+  /*
+   * 4x4 boards are stored packed into this long instead (see BitBoard), and moved via precomputed row tables.
+   * For those boards grid only serves as a buffer that getGrid() unpacks into.
+   */
+  private long board;
+
+  private final boolean useBitBoard;
+
+  /*
+   * Statistics kept up to date by the moves and addNumber, so that querying them never needs a scan of the grid.
+   * 4x4 boards don't need emptyCells, as their empty cells can be read off the packed board just as quickly.
+   */
+  private int numEmptyCells;
+
+  // Bit n % 64 of emptyCells[n / 64] is set if cell n is empty
+  private final long[] emptyCells;
+
+  // Tiles never shrink, so this only ever grows during a game
+  private int highestCellLog;
+
+  // Decides where new numbers spawn
+  private RandomSource random = RandomSource.threadLocal();
+
   /**
    * Create a new game model with the specified gridSize.
    */
   public GameModel(int gridSize) {
-    this(gridSize, new byte[gridSize * gridSize]);
+    this(gridSize, new byte[gridSize * gridSize], 0);
     Arrays.fill(grid, (byte) -1);
+    recomputeStats();
+  }
+
+  /**
+   * Create a new game model with the specified gridSize, whose numbers spawn in a sequence determined by the seed.
+   * Two games with the same seed see the same random draws, so bots can be compared on equal terms.
+   */
+  public GameModel(int gridSize, long seed) {
+    this(gridSize);
+    this.random = new SplitMix64(seed);
   }
 
-  private GameModel(int gridSize, byte[] grid) {
+  private GameModel(int gridSize, byte[] grid, long board) {
     this.gridSize = gridSize;
     this.grid = grid;
+    this.board = board;
+    this.useBitBoard = gridSize == BitBoard.SIZE;
+    this.emptyCells = new long[useBitBoard ? 0 : (grid.length + 63) / 64];
   }
 
   /**
-   * Returns a copy of the given model.
+   * Returns a copy of the given model. The copy spawns numbers with {@link RandomSource#threadLocal()}, so that bots
+   * simulating on it don't disturb the spawn sequence of a seeded game.
    */
   public static GameModel copyOf(GameModel model) {
-    byte[] gridCopy = Arrays.copyOf(model.getGrid(), model.getGrid().length);
-    GameModel copy = new GameModel(model.gridSize, gridCopy);
-    copy.setScore(model.getScore());
+    GameModel copy = new GameModel(model.gridSize, new byte[model.grid.length], model.board);
+    model.copyInto(copy);
     return copy;
   }
 
+  /**
+   * Creates a model from a grid of log values, laid out as described for {@link #getGrid()}, with -1 for empty cells.
+   */
+  public static GameModel fromGrid(int gridSize, byte[] grid) {
+    GameModel model = new GameModel(gridSize, Arrays.copyOf(grid, gridSize * gridSize), 0);
+    if (model.useBitBoard) {
+      model.board = BitBoard.pack(model.grid);
+    }
+    model.recomputeStats();
+    return model;
+  }
+
+  /**
+   * Overwrites the target with the state of this model without allocating, so that one scratch model can be reused
+   * for many simulations. Both models must have the same grid size.
+   */
+  public void copyInto(GameModel target) {
+    if (useBitBoard) {
+      target.board = board;
+    } else {
+      System.arraycopy(grid, 0, target.grid, 0, grid.length);
+      System.arraycopy(emptyCells, 0, target.emptyCells, 0, emptyCells.length);
+    }
+    target.numEmptyCells = numEmptyCells;
+    target.highestCellLog = highestCellLog;
+    target.setScore(score);
+  }
+
+  /**
+   * Brings the statistics in line with a grid or board that was set wholesale.
+   */
+  private void recomputeStats() {
+    if (useBitBoard) {
+      numEmptyCells = BitBoard.countEmptyCells(board);
+      highestCellLog = BitBoard.getHighestCellLog(board);
+      return;
+    }
+    numEmptyCells = 0;
+    highestCellLog = 0;
+    Arrays.fill(emptyCells, 0);
+    for (int i = 0; i < grid.length; i++) {
+      if (grid[i] < 0) {
+        emptyCells[i >>> 6] |= 1L << i;
+        numEmptyCells++;
+      } else {
+        highestCellLog = max(highestCellLog, grid[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the source that decides where new numbers spawn. Rollout policies may draw from it as well, so that a
+   * whole simulation follows from one seed.
+   */
+  public RandomSource getRandomSource() {
+    return random;
+  }
+
+  /**
+   * Sets the source that decides where new numbers spawn. It is not affected by {@link #copyInto}.
+   */
+  public void setRandomSource(RandomSource random) {
+    this.random = random;
+  }
+
   /**
    * Returns the current state of the grid.
+   * For 4x4 boards this is a snapshot that is refreshed on every call, and writes to it are not reflected in the model.
+   * Other boards return the live grid, which must not be written to, as that would bypass the model's statistics.
    */
   public byte[] getGrid() {
+    if (useBitBoard) {
+      BitBoard.unpack(board, grid);
+    }
     return grid;
   }
 
+  public int getGridSize() {
+    return gridSize;
+  }
+
+  /**
+   * Returns the grid packed into a {@link BitBoard}. Only valid for 4x4 boards.
+   */
+  long getBitBoard() {
+    return board;
+  }
+
   /**
    * Returns the highest valued cell.
    */
   public int getHighestCellLog() {
-    int highestCell = 0;
-    for (int i = 0; i < grid.length; i++) {
-      highestCell = max(highestCell, grid[i]);
-    }
-    return highestCell;
+    return highestCellLog;
   }
 
   /**
@@ -81,12 +195,41 @@ public class GameModel {
     return 1 << getHighestCellLog();
   }
 
+  /**
+   * Returns the number of empty cells.
+   */
+  public int getNumEmptyCells() {
+    return numEmptyCells;
+  }
+
   /**
    * Executes a move in the requested direction, updating the game state as necessary.
    *
    * @return true if a move was made.
    */
   public boolean executeMove(Direction direction) {
+    boolean moved = move(direction);
+    if (Metrics.ENABLED) {
+      Metrics.recordEngineMove(moved);
+    }
+    return moved;
+  }
+
+  private boolean move(Direction direction) {
+    if (useBitBoard) {
+      long movedBoard = BitBoard.move(board, direction);
+      if (movedBoard == board) {
+        return false;
+      }
+      int numEmptyCellsAfter = BitBoard.countEmptyCells(movedBoard);
+      if (numEmptyCellsAfter > numEmptyCells) {
+        // Only merges free up cells, and only merges can make a new highest cell
+        highestCellLog = max(highestCellLog, BitBoard.getHighestCellLog(movedBoard));
+      }
+      numEmptyCells = numEmptyCellsAfter;
+      board = movedBoard;
+      return true;
+    }
     switch (direction) {
       case UP:
         return moveUp(true);
@@ -105,6 +248,10 @@ public class GameModel {
     int step = 1;
     for (int i = grid.length - 1; i >= 0; i--) {
       byte currNumber = grid[i];
+      if (currNumber < 0) {
+        // nothing to slide
+        continue;
+      }
       int yCoord = i / gridSize;
       int nextIndexToCheck = i + step;
       // try to move all the way to the right side of the grid
@@ -114,14 +261,14 @@ public class GameModel {
           return true;
         }
         anyUpdates = true;
-        grid[nextIndexToCheck - step] = -1;
+        clearCell(nextIndexToCheck - step);
         if (grid[nextIndexToCheck] == -1) {
           // empty, so just move the number
-          grid[nextIndexToCheck] = currNumber;
+          setCell(nextIndexToCheck, currNumber);
         } else {
           // otherwise combine the numbers, and keep going up
-          grid[nextIndexToCheck] += 1;
           currNumber += 1;
+          setCell(nextIndexToCheck, currNumber);
         }
         nextIndexToCheck += step;
       }
@@ -134,8 +281,12 @@ public class GameModel {
     int step = -1;
     for (int i = 0; i < grid.length; i++) {
       byte currNumber = grid[i];
-      // TODO(lpalm): These two divisions by gridsize overwhelm the CPU's ALU and halve the speed of the method.
-      // Consider using bit-twiddling for fast board updates (implementations available online)
+      if (currNumber < 0) {
+        // nothing to slide
+        continue;
+      }
+      // These two divisions by gridsize overwhelm the CPU's ALU and halve the speed of the method,
+      // which is why 4x4 boards go through BitBoard instead.
       int yCoord = i /gridSize;
       int nextIndexToCheck = i + step;
       // try to move all the way to the left side of the grid
@@ -145,14 +296,14 @@ public class GameModel {
           return true;
         }
         anyUpdates = true;
-        grid[nextIndexToCheck - step] = -1;
+        clearCell(nextIndexToCheck - step);
         if (grid[nextIndexToCheck] == -1) {
           // empty, so just move the number
-          grid[nextIndexToCheck] = currNumber;
+          setCell(nextIndexToCheck, currNumber);
         } else {
           // otherwise combine the numbers, and keep going up
-          grid[nextIndexToCheck] += 1;
           currNumber += 1;
+          setCell(nextIndexToCheck, currNumber);
         }
         nextIndexToCheck += step;
       }
@@ -165,6 +316,10 @@ public class GameModel {
     int step = gridSize;
     for (int i = grid.length - 1; i >= 0; i--) {
       byte currNumber = grid[i];
+      if (currNumber < 0) {
+        // nothing to slide
+        continue;
+      }
       int nextIndexToCheck = i + step;
       // try to move all the way to the bottom of the grid
       while (nextIndexToCheck < grid.length
@@ -173,14 +328,14 @@ public class GameModel {
           return true;
         }
         anyUpdates = true;
-        grid[nextIndexToCheck - step] = -1;
+        clearCell(nextIndexToCheck - step);
         if (grid[nextIndexToCheck] == -1) {
           // empty, so just move the number
-          grid[nextIndexToCheck] = currNumber;
+          setCell(nextIndexToCheck, currNumber);
         } else {
           // otherwise combine the numbers, and keep going up
-          grid[nextIndexToCheck] += 1;
           currNumber += 1;
+          setCell(nextIndexToCheck, currNumber);
         }
         nextIndexToCheck += step;
       }
@@ -193,6 +348,10 @@ public class GameModel {
     int step = -gridSize;
     for (int i = 0; i < grid.length; i++) {
       byte currNumber = grid[i];
+      if (currNumber < 0) {
+        // nothing to slide
+        continue;
+      }
       int nextIndexToCheck = i + step;
       // try to move all the way to the top of the grid
       while (nextIndexToCheck >= 0
@@ -201,14 +360,14 @@ public class GameModel {
           return true;
         }
         anyUpdates = true;
-        grid[nextIndexToCheck - step] = -1;
+        clearCell(nextIndexToCheck - step);
         if (grid[nextIndexToCheck] == -1) {
           // empty, so just move the number
-          grid[nextIndexToCheck] = currNumber;
+          setCell(nextIndexToCheck, currNumber);
         } else {
           // otherwise combine the numbers, and keep going up
-          grid[nextIndexToCheck] += 1;
           currNumber += 1;
+          setCell(nextIndexToCheck, currNumber);
         }
         nextIndexToCheck += step;
       }
@@ -216,40 +375,110 @@ public class GameModel {
     return anyUpdates;
   }
 
+  /**
+   * Sets a cell of the grid to a log value, keeping the statistics up to date.
+   */
+  private void setCell(int index, byte logValue) {
+    if (grid[index] < 0) {
+      emptyCells[index >>> 6] &= ~(1L << index);
+      numEmptyCells--;
+    }
+    grid[index] = logValue;
+    highestCellLog = max(highestCellLog, logValue);
+  }
+
+  /**
+   * Empties a cell of the grid, keeping the statistics up to date.
+   */
+  private void clearCell(int index) {
+    if (grid[index] >= 0) {
+      emptyCells[index >>> 6] |= 1L << index;
+      numEmptyCells++;
+    }
+    grid[index] = -1;
+  }
+
 
   /**
    * Returns true if the winning number has been reached.
+   * This stays true once the winning cell has been merged into a higher one.
    */
   public boolean hasWon() {
-
-    for (int aGrid : grid) {
-      if (aGrid == WINNING_POWER_OF_2) {
-        return true;
-      }
-    }
-    return false;
+    return highestCellLog >= WINNING_POWER_OF_2;
   }
 
   /**
    * Returns true if there is still a move remaining.
    */
   public boolean isThereAValidMove() {
-    return !isBoardFull() || moveUp(false) || moveDown(false)
+    if (useBitBoard) {
+      return BitBoard.hasValidMove(board);
+    }
+    return numEmptyCells > 0 || moveUp(false) || moveDown(false)
             || moveLeft(false) || moveRight(false);
   }
 
-
-  private boolean isBoardFull() {
-    for (int aGrid : grid) {
-      if (aGrid == -1) {
-        return false;
+  /**
+   * Returns a mask with bit n set if the move in the direction with ordinal n would change the grid.
+   * Unlike {@link #isThereAValidMove()}, this tells apart the moves that are valid, in a single scan of the grid.
+   */
+  public int getValidMoveMask() {
+    if (useBitBoard) {
+      return BitBoard.validMoveMask(board);
+    }
+    // A move changes the grid if and only if some number has an empty cell or an equal number next to it in the
+    // direction of the move, so every pair of neighbouring cells is looked at once, for both its directions
+    int mask = 0;
+    for (int y = 0, i = 0; y < gridSize; y++) {
+      for (int x = 0; x < gridSize; x++, i++) {
+        byte cell = grid[i];
+        if (x + 1 < gridSize) {
+          mask |= neighbourMask(cell, grid[i + 1], Direction.RIGHT, Direction.LEFT);
+        }
+        if (y + 1 < gridSize) {
+          mask |= neighbourMask(cell, grid[i + gridSize], Direction.DOWN, Direction.UP);
+        }
       }
+      if (mask == ALL_MOVES_MASK) {
+        break;
+      }
+    }
+    return mask;
+  }
+
+  /**
+   * Returns the moves that the pair of neighbouring cells makes valid: forward if the first cell's number can slide or
+   * merge into the second cell, backward if the second cell's can into the first.
+   */
+  private static int neighbourMask(byte first, byte second, Direction forward, Direction backward) {
+    int mask = 0;
+    if (first >= 0 && (second < 0 || second == first)) {
+      mask |= 1 << forward.ordinal();
     }
-    return true;
+    if (second >= 0 && (first < 0 || first == second)) {
+      mask |= 1 << backward.ordinal();
+    }
+    return mask;
   }
 
+
   public void addNumber() {
-    score += numberPlacer.addNumber(grid);
+    score += useBitBoard ? numberPlacer.addNumberToBoard(this, random) : numberPlacer.addNumberToGrid(this, random);
+  }
+
+  /**
+   * Adds the number with the given log value at the given empty cell, as if it had spawned there.
+   * Lets searches enumerate the spawns instead of drawing them.
+   */
+  void addNumberAt(int cellIndex, byte logValue) {
+    if (useBitBoard) {
+      board = BitBoard.setCell(board, cellIndex, logValue);
+      numEmptyCells--;
+      highestCellLog = max(highestCellLog, logValue);
+    } else {
+      setCell(cellIndex, logValue);
+    }
+    score += logValue * 2;
   }
 
   public int getScore() {
@@ -260,37 +489,61 @@ public class GameModel {
     this.score = score;
   }
 
-  private static class NumberPlacer {
+  static class NumberPlacer {
+
+    // A 4 spawns when the low 24 bits of a draw fall below this
+    private static final long FOUR_THRESHOLD = (long) (LIKELIHOOD_OF_4 * (1 << 24));
+
+    /**
+     * Returns the value of the new number from the low bits of a draw, leaving the high 32 bits for picking the cell.
+     */
+    static byte numberToAdd(long bits) {
+      return (byte) ((bits & 0xFFFFFF) < FOUR_THRESHOLD ? 2 : 1);
+    }
 
     /**
      * Tries to add a new number to the grid according to the game rules.
      * Returns the number number that was added, or zero if board was full.
      */
-    public int addNumber(byte[] grid) {
+    public int addNumberToGrid(GameModel model, RandomSource rng) {
 
-      int numFreeCells = 0;
-      for (int i = 0; i < grid.length; i++) {
-        if (grid[i] == -1) {
-          numFreeCells++;
-        }
-      }
+      int numFreeCells = model.numEmptyCells;
 
       if (numFreeCells == 0) return 0;
 
-      ThreadLocalRandom rng = ThreadLocalRandom.current();
-
-      int index = rng.nextInt(numFreeCells);
-      byte numberToAdd = (byte) (rng.nextFloat() < LIKELIHOOD_OF_4 ? 2 : 1);
+      // one draw decides both the cell and the number
+      long bits = rng.nextLong();
+      // counted from the last empty cell, as the spawn sequences of seeded games always have been
+      int index = numFreeCells - 1 - RandomSource.boundedInt(bits >>> 32, numFreeCells);
+      byte numberToAdd = numberToAdd(bits);
 
-      for (int i = 0; i < grid.length; i++) {
-        if (grid[i] == -1) {
-          if( --numFreeCells <= index) {
-            grid[i] = numberToAdd;
-            return numberToAdd * 2;
-          }
-        }
+      // skip whole words of the mask before the chosen cell, then drop the lowest empty cells of its word
+      int word = 0;
+      for (; index >= Long.bitCount(model.emptyCells[word]); word++) {
+        index -= Long.bitCount(model.emptyCells[word]);
       }
-      return 0;
+      long emptyCells = model.emptyCells[word];
+      for (int i = 0; i < index; i++) {
+        emptyCells &= emptyCells - 1;
+      }
+      model.setCell(word << 6 | Long.numberOfTrailingZeros(emptyCells), numberToAdd);
+      return numberToAdd * 2;
+    }
+
+    /**
+     * Same as {@link #addNumberToGrid}, for a model whose grid is packed into a {@link BitBoard}.
+     */
+    public int addNumberToBoard(GameModel model, RandomSource rng) {
+
+      if (model.numEmptyCells == 0) return 0;
+
+      // one draw decides both the cell and the number
+      long bits = rng.nextLong();
+      byte numberToAdd = numberToAdd(bits);
+      model.board = BitBoard.setRandomEmptyCell(model.board, bits >>> 32, numberToAdd);
+      model.numEmptyCells--;
+      model.highestCellLog = max(model.highestCellLog, numberToAdd);
+      return numberToAdd * 2;
     }
   }
 }
@@ -3,6 +3,8 @@ package games;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
 
 import static games.Constants.GRID_SIZE;
 import static games.GameWindow.WINDOW_HEIGHT;
@@ -14,6 +16,10 @@ import static java.awt.Color.WHITE;
 /**
  * {@link Graphics} based renderer for the game grid.
  *
+ * Each kind of cell is rendered once into an image of its own, and the grid is kept in an offscreen image that only
+ * has the cells that changed since the last paint redrawn into it. A paint is then mostly a single image copy, which
+ * keeps up with a bot playing thousands of moves per second.
+ *
  * @author lpalm
  */
 @SuppressWarnings("serial")
@@ -49,8 +55,23 @@ public class GamePanel
 
   private static final Color GRID_COLOR = new Color(187, 173, 160);
 
+  private static final Font SCORE_FONT = new Font("Helvetica Neue", Font.BOLD, 14);
+
+  private static final Font LABEL_FONT = new Font("Helvetica Neue", Font.BOLD, 18);
+
+  // Marks a cell of drawnGrid as not drawn yet, as no cell can hold this
+  private static final byte NOT_DRAWN = Byte.MIN_VALUE;
+
   private final GameWindow gameWindow;
 
+  // The cells as rendered by getCellImage, by log value + 1 so that index 0 is the empty cell. Rendered when needed.
+  private final Image[] cellImages = new Image[Byte.MAX_VALUE + 1];
+
+  // The grid as last drawn into gridImage, created along with it
+  private Image gridImage;
+
+  private byte[] drawnGrid;
+
 
   public GamePanel(GameWindow gameWindow) {
 
@@ -58,7 +79,10 @@ public class GamePanel
   }
 
 
-  private static void drawNumberInGrid(byte logNumber, int gridX, int gridY, Graphics g) {
+  /**
+   * Draws the number centered in a cell whose top left corner is at the origin.
+   */
+  private static void drawNumberInCell(byte logNumber, Graphics g) {
 
     if (logNumber < 0) return;
 
@@ -67,13 +91,10 @@ public class GamePanel
     FontMetrics fm = g.getFontMetrics();
     String s = String.valueOf(1 << logNumber);
 
-    int minX = (int) (CELL_MIN_X + gridX * GRID_SPACING_X);
-    int x = (int) (minX + (GRID_SPACING_X - fm.stringWidth(s)) / 2);
-    int minY = (int) (CELL_MIN_Y + gridY * GRID_SPACING_Y);
-    int y = (int) (minY + fm.getAscent() + (GRID_SPACING_Y - fm.getHeight()) / 2);
+    int x = (int) ((GRID_SPACING_X - fm.stringWidth(s)) / 2 - CELL_PADDING_X);
+    int y = (int) (fm.getAscent() + (GRID_SPACING_Y - fm.getHeight()) / 2 - CELL_PADDING_Y);
     g.setColor(getColorForNumber(logNumber));
     g.drawString(s, x, y);
-    g.setColor(BLACK);
   }
 
 
@@ -112,7 +133,7 @@ public class GamePanel
 
   private static void drawWinLoseLabels(Game.GameState state, Graphics g) {
     g.setColor(BLACK);
-    g.setFont(new Font("Helvetica Neue", Font.BOLD, 18));
+    g.setFont(LABEL_FONT);
     if (state == Game.GameState.WON) {
       g.drawString("Yay! You won :D Press space to retry", 150, 30);
     } else if (state == Game.GameState.LOST) {
@@ -121,33 +142,91 @@ public class GamePanel
   }
 
   private static void drawScore(GameModel model, Graphics g) {
-    g.setFont(new Font("Helvetica Neue", Font.BOLD, 14));
+    g.setFont(SCORE_FONT);
     g.setColor(BLACK);
     g.drawString("Score: " + model.getScore(), 270, 10);
   }
 
 
-  private static void drawCells(byte[] grid, Graphics g) {
+  /**
+   * Redraws the cells that changed since the last call into the grid image, creating it first if need be.
+   */
+  private void updateGridImage(byte[] grid) {
+
+    if (gridImage == null || drawnGrid.length != grid.length) {
+      gridImage = createCompatibleImage(GRID_WIDTH, GRID_HEIGHT, Transparency.OPAQUE);
+      drawnGrid = new byte[grid.length];
+      Arrays.fill(drawnGrid, NOT_DRAWN);
+      Graphics g = gridImage.getGraphics();
+      g.setColor(getBackground());
+      g.fillRect(0, 0, GRID_WIDTH, GRID_HEIGHT);
+      drawBackground(g);
+      g.dispose();
+    }
 
+    Graphics g = gridImage.getGraphics();
     for (int i = 0; i < grid.length; i++) {
-      byte logNumber = grid[i];
-      drawCell(logNumber, i % GRID_SIZE, i / GRID_SIZE, g);
+      if (grid[i] != drawnGrid[i]) {
+        drawCell(grid[i], i % GRID_SIZE, i / GRID_SIZE, g);
+        drawnGrid[i] = grid[i];
+      }
     }
+    g.dispose();
   }
 
 
-  private static void drawCell(byte logNumber, int x, int y, Graphics g) {
+  /**
+   * Draws a cell into the grid image, over whatever cell was there before.
+   */
+  private void drawCell(byte logNumber, int x, int y, Graphics g) {
 
-    Graphics2D g2 = (Graphics2D) g;
-    g2.setPaint(getColorForCell(logNumber));
+    int cellX = (int) (CELL_MIN_X + CELL_PADDING_X + x * GRID_SPACING_X) - GRID_MIN_X;
+    int cellY = (int) (CELL_MIN_Y + CELL_PADDING_Y + y * GRID_SPACING_Y) - GRID_MIN_Y;
+    Image cellImage = getCellImage(logNumber);
+    // Clear the corners, which the rounded cell leaves transparent
+    g.setColor(GRID_COLOR);
+    g.fillRect(cellX, cellY, cellImage.getWidth(null), cellImage.getHeight(null));
+    g.drawImage(cellImage, cellX, cellY, null);
+  }
+
+
+  /**
+   * Returns the image of a cell with the given log value, rendering it the first time.
+   */
+  private Image getCellImage(byte logNumber) {
+
+    Image cellImage = cellImages[logNumber + 1];
+    if (cellImage != null) {
+      return cellImage;
+    }
 
-    float cellX = CELL_MIN_X + CELL_PADDING_X + x * GRID_SPACING_X;
-    float cellY = CELL_MIN_Y + CELL_PADDING_Y + y * GRID_SPACING_Y;
     float cellWidth = GRID_SPACING_X - 2 * CELL_PADDING_X;
     float cellHeight = GRID_SPACING_Y - 2 * CELL_PADDING_Y;
-    g2.fill(new RoundRectangle2D.Double(cellX, cellY, cellWidth, cellHeight, CELL_CHAMFER_X, CELL_CHAMFER_Y));
+    cellImage = createCompatibleImage((int) Math.ceil(cellWidth), (int) Math.ceil(cellHeight),
+            Transparency.TRANSLUCENT);
+
+    Graphics2D g2 = (Graphics2D) cellImage.getGraphics();
+    g2.setPaint(getColorForCell(logNumber));
+    g2.fill(new RoundRectangle2D.Double(0, 0, cellWidth, cellHeight, CELL_CHAMFER_X, CELL_CHAMFER_Y));
+    drawNumberInCell(logNumber, g2);
+    g2.dispose();
 
-    drawNumberInGrid(logNumber, x, y, g);
+    cellImages[logNumber + 1] = cellImage;
+    return cellImage;
+  }
+
+
+  /**
+   * Creates an image in the screen's format if the panel is on one, so that it can be copied there without conversion.
+   */
+  private Image createCompatibleImage(int width, int height, int transparency) {
+
+    GraphicsConfiguration configuration = getGraphicsConfiguration();
+    if (configuration != null) {
+      return configuration.createCompatibleImage(width, height, transparency);
+    }
+    return new BufferedImage(width, height,
+            transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
   }
 
 
@@ -163,8 +242,8 @@ public class GamePanel
 
     super.paintComponent(g);
     Game gameManager = gameWindow.gameManager;
-    drawBackground(g);
-    drawCells(gameManager.getGameModel().getGrid(), g);
+    updateGridImage(gameManager.getGameModel().getGrid());
+    g.drawImage(gridImage, GRID_MIN_X, GRID_MIN_Y, null);
     drawScore(gameManager.getGameModel(), g);
     drawWinLoseLabels(gameManager.getGameState(), g);
   }
@@ -174,7 +253,6 @@ public class GamePanel
 
     Graphics2D g2 = (Graphics2D) g;
     g2.setPaint(GRID_COLOR);
-    g2.fill(new RoundRectangle2D.Double((float) GRID_MIN_X, (float) GRID_MIN_Y, (float) GRID_WIDTH, (float) GRID_HEIGHT,
-            CELL_CHAMFER_X, CELL_CHAMFER_Y));
+    g2.fill(new RoundRectangle2D.Double(0, 0, (float) GRID_WIDTH, (float) GRID_HEIGHT, CELL_CHAMFER_X, CELL_CHAMFER_Y));
   }
 }
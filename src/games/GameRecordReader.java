@@ -0,0 +1,228 @@
+package games;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+import static games.GameRecordWriter.FILE_HEADER_BYTES;
+import static games.GameRecordWriter.GAME_HEADER_BYTES;
+
+/**
+ * Reads the games of a file written by {@link GameRecordWriter}, one after another, and replays them.
+ *
+ * The file is memory mapped a window of up to a gigabyte at a time, so files of any size can be read without copying
+ * them, and a replay costs little more than playing its moves with {@link GameModel#executeMove}.
+ *
+ * Usage: GameRecordReader FILE
+ * replays every game of the file and prints their statistics.
+ */
+public class GameRecordReader implements AutoCloseable {
+
+  private static final long WINDOW_BYTES = 1L << 30;
+
+  private final FileChannel channel;
+
+  private final long fileSize;
+
+  private MappedByteBuffer window;
+
+  // Where the window starts in the file
+  private long windowStart;
+
+  // Where the current game's header starts in the window, and where the next game's starts in the file
+  private int gameOffset = -1;
+
+  private long nextGame = FILE_HEADER_BYTES;
+
+  private int gridSize;
+
+  private int unitBytes;
+
+  private boolean seeded;
+
+  private long seed;
+
+  private int numStartCells;
+
+  private int numMoves;
+
+  /**
+   * Opens a game record file, positioned before its first game.
+   *
+   * @throws IOException if the file can't be read, or isn't a game record file.
+   */
+  public GameRecordReader(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      fileSize = channel.size();
+      mapWindow(0);
+      if (fileSize < FILE_HEADER_BYTES || window.getInt(0) != GameRecordWriter.MAGIC
+              || window.getInt(4) != GameRecordWriter.VERSION) {
+        throw new IOException("Not a game record file: " + path);
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+
+    if (args.length != 1) {
+      throw new IllegalArgumentException("Usage: GameRecordReader FILE");
+    }
+    long numGames = 0;
+    long numMoves = 0;
+    long totalScore = 0;
+    int[] gamesByHighestCell = new int[32];
+    long startNanos = System.nanoTime();
+    try (GameRecordReader reader = new GameRecordReader(Paths.get(args[0]))) {
+      while (reader.next()) {
+        GameModel model = reader.replay(null);
+        numGames++;
+        numMoves += reader.getNumMoves();
+        totalScore += model.getScore();
+        gamesByHighestCell[model.getHighestCellLog()]++;
+      }
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    System.out.println(String.format("Games: %d Moves: %d Avg Score: %.0f", numGames, numMoves,
+            totalScore / (double) Math.max(1, numGames)));
+    System.out.println(String.format("Replayed in %.2fs: %.0f games/sec, %.0f moves/sec", seconds,
+            numGames / seconds, numMoves / seconds));
+    for (int i = 0; i < gamesByHighestCell.length; i++) {
+      if (gamesByHighestCell[i] > 0) {
+        System.out.println(String.format("%d's:\t%d\t(%.1f%%)", 1 << i, gamesByHighestCell[i],
+                100.0 * gamesByHighestCell[i] / numGames));
+      }
+    }
+  }
+
+  /**
+   * Moves on to the next game.
+   *
+   * @return false if there are no more games.
+   * @throws IOException if the file ends in the middle of a game.
+   */
+  public boolean next() throws IOException {
+
+    if (nextGame >= fileSize) {
+      gameOffset = -1;
+      return false;
+    }
+    if (nextGame + GAME_HEADER_BYTES > fileSize) {
+      throw new IOException("Truncated game record at byte " + nextGame);
+    }
+    if (nextGame + GAME_HEADER_BYTES > windowStart + window.limit()) {
+      mapWindow(nextGame);
+    }
+    int offset = (int) (nextGame - windowStart);
+    int size = window.get(offset) & 0xFF;
+    int units = (window.getShort(offset + 2) & 0xFFFF) + window.getInt(offset + 4);
+    long gameBytes = GAME_HEADER_BYTES + (long) units * GameRecordWriter.unitBytes(size);
+    if (size == 0 || window.getInt(offset + 4) < 0 || nextGame + gameBytes > fileSize) {
+      throw new IOException("Truncated or corrupt game record at byte " + nextGame);
+    }
+    if (nextGame + gameBytes > windowStart + window.limit()) {
+      if (gameBytes > WINDOW_BYTES) {
+        throw new IOException("Game record too long at byte " + nextGame);
+      }
+      mapWindow(nextGame);
+      offset = 0;
+    }
+
+    gameOffset = offset;
+    gridSize = size;
+    unitBytes = GameRecordWriter.unitBytes(size);
+    seeded = (window.get(offset + 1) & GameRecordWriter.FLAG_SEEDED) != 0;
+    numStartCells = window.getShort(offset + 2) & 0xFFFF;
+    numMoves = window.getInt(offset + 4);
+    seed = window.getLong(offset + 8);
+    nextGame += gameBytes;
+    return true;
+  }
+
+  public int getGridSize() {
+    return gridSize;
+  }
+
+  /**
+   * Returns whether the game spawned its numbers from a seed.
+   */
+  public boolean isSeeded() {
+    return seeded;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  public int getNumMoves() {
+    return numMoves;
+  }
+
+  public Direction getMove(int moveIndex) {
+    return Direction.VALUES[unit(numStartCells + moveIndex) & 3];
+  }
+
+  /**
+   * Returns the cell a number spawned in after the move, or -1 if none did.
+   */
+  public int getSpawnCell(int moveIndex) {
+    int cell = unit(numStartCells + moveIndex) >>> 3;
+    return cell == GameRecordWriter.noSpawn(unitBytes) ? -1 : cell;
+  }
+
+  /**
+   * Replays the current game on a new model, and returns the model at the end of the game.
+   *
+   * @param beforeEachMove if not null, is given the model and the move about to be played on it, before each move.
+   *                       The model must not be changed.
+   */
+  public GameModel replay(BiConsumer<GameModel, Direction> beforeEachMove) {
+
+    if (gameOffset < 0) {
+      throw new IllegalStateException("No current game");
+    }
+    GameModel model = new GameModel(gridSize);
+    int noSpawn = GameRecordWriter.noSpawn(unitBytes);
+    for (int i = 0; i < numStartCells; i++) {
+      int unit = unit(i);
+      model.addNumberAt(unit >>> 3, (byte) ((unit & 4) != 0 ? 2 : 1));
+    }
+    for (int i = numStartCells; i < numStartCells + numMoves; i++) {
+      int unit = unit(i);
+      Direction direction = Direction.VALUES[unit & 3];
+      if (beforeEachMove != null) {
+        beforeEachMove.accept(model, direction);
+      }
+      model.executeMove(direction);
+      if (unit >>> 3 != noSpawn) {
+        model.addNumberAt(unit >>> 3, (byte) ((unit & 4) != 0 ? 2 : 1));
+      }
+    }
+    return model;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private int unit(int unitIndex) {
+    int offset = gameOffset + GAME_HEADER_BYTES + unitIndex * unitBytes;
+    return unitBytes == 1 ? window.get(offset) & 0xFF : window.getShort(offset) & 0xFFFF;
+  }
+
+  private void mapWindow(long start) throws IOException {
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_BYTES, fileSize - start));
+    window.order(ByteOrder.LITTLE_ENDIAN);
+    windowStart = start;
+  }
+}
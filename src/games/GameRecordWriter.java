@@ -0,0 +1,258 @@
+package games;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Appends games to a game record file, which {@link GameRecordReader} replays.
+ *
+ * A game is recorded as it is played: {@link #startGame} once the starting numbers have spawned, then
+ * {@link Recording#recordMove} after each move and its spawn. Finished games are gathered in a buffer and written out
+ * whole, so any number of threads can record games to one writer.
+ *
+ * The file starts with the int magic "GREC" and an int version, then holds the games one after another, all numbers
+ * little endian. Each game is a header:
+ * <pre>
+ *   byte grid size, byte flags (bit 0: seeded), short number of starting cells, int number of moves, long seed
+ * </pre>
+ * followed by one unit per starting cell and then one unit per move. A unit is a single byte on grids of up to 30
+ * cells and a little endian short on larger ones, with the move's direction ordinal in bits 0-1, whether the spawn was
+ * a 4 in bit 2, and the spawn's cell index from bit 3 on, all ones if nothing spawned. Starting cells have direction
+ * bits 0. A 4x4 game thus takes a byte per move.
+ */
+public class GameRecordWriter implements AutoCloseable {
+
+  static final int MAGIC = 0x43455247; // "GREC" read as a little endian int
+
+  static final int VERSION = 1;
+
+  static final int FILE_HEADER_BYTES = 8;
+
+  static final int GAME_HEADER_BYTES = 16;
+
+  static final int FLAG_SEEDED = 1;
+
+  private static final int BUFFER_BYTES = 1 << 16;
+
+  private final FileChannel channel;
+
+  // Finished games waiting to be written, guarded by this
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+  /**
+   * Opens the file for appending games, creating it if it doesn't exist. The file is locked until the writer is
+   * closed, so that two writers can't write over each other's games.
+   *
+   * @throws IOException if the file can't be opened, isn't a game record file, or is open for writing already, in this
+   *                     process or another.
+   */
+  public GameRecordWriter(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    try {
+      FileLock fileLock;
+      try {
+        fileLock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        fileLock = null;
+      }
+      if (fileLock == null) {
+        throw new IOException("Game record file is open for writing already: " + path);
+      }
+      if (channel.size() == 0) {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(header);
+      } else {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+          throw new IOException("Not a game record file: " + path);
+        }
+        channel.position(channel.size());
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Starts recording a game from the model's position, in which every number must have spawned: a 2 or a 4.
+   *
+   * @param seed the seed the game spawns from, or null if it isn't seeded.
+   */
+  public Recording startGame(GameModel model, Long seed) {
+    return new Recording(model, seed);
+  }
+
+  /**
+   * Writes out the games that are still buffered, and closes the file.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Buffers a finished game, writing out the buffer first if the game doesn't fit. Games are never split between two
+   * writes.
+   */
+  private synchronized void append(ByteBuffer game) throws IOException {
+    if (game.remaining() > buffer.remaining()) {
+      flush();
+      if (game.remaining() > buffer.capacity()) {
+        writeFully(game);
+        return;
+      }
+    }
+    buffer.put(game);
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  private void writeFully(ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
+  static int unitBytes(int gridSize) {
+    return gridSize * gridSize < noSpawn(1) ? 1 : 2;
+  }
+
+  /**
+   * Returns the cell index that means nothing spawned, for units of the given number of bytes.
+   */
+  static int noSpawn(int unitBytes) {
+    return (1 << (8 * unitBytes - 3)) - 1;
+  }
+
+  /**
+   * A game being recorded. Not thread safe: each game should be recorded by the thread that plays it.
+   */
+  public class Recording {
+
+    private final int gridSize;
+
+    private final int unitBytes;
+
+    private final Long seed;
+
+    private final int numStartCells;
+
+    // Plays the recorded moves and spawns, so that each spawn can be told apart from what the move did
+    private final GameModel shadow;
+
+    private byte[] units;
+
+    private int numUnits;
+
+    private boolean finished;
+
+    private Recording(GameModel model, Long seed) {
+      this.gridSize = model.getGridSize();
+      this.unitBytes = unitBytes(gridSize);
+      this.seed = seed;
+      this.shadow = new GameModel(gridSize);
+      this.units = new byte[64 * unitBytes];
+
+      byte[] grid = model.getGrid();
+      for (int i = 0; i < grid.length; i++) {
+        if (grid[i] >= 0) {
+          if (grid[i] != 1 && grid[i] != 2) {
+            throw new IllegalArgumentException("A recorded game must start from spawned numbers only");
+          }
+          addUnit(0, i, grid[i]);
+        }
+      }
+      numStartCells = numUnits;
+      model.copyInto(shadow);
+    }
+
+    /**
+     * Records a move, given the model after the move and the spawn that followed it, if any.
+     *
+     * @throws IllegalStateException if the model isn't where the recorded game and the move lead.
+     */
+    public void recordMove(Direction direction, GameModel model) {
+
+      shadow.executeMove(direction);
+      int spawnCell = noSpawn(unitBytes);
+      byte spawnLog = 1;
+      if (gridSize == BitBoard.SIZE) {
+        long spawned = BitBoard.emptyCellMask(shadow.getBitBoard()) & ~BitBoard.emptyCellMask(model.getBitBoard());
+        if (spawned != 0) {
+          spawnCell = Long.numberOfTrailingZeros(spawned) >>> 2;
+          spawnLog = (byte) BitBoard.getCell(model.getBitBoard(), spawnCell);
+        }
+      } else {
+        byte[] expected = shadow.getGrid();
+        byte[] actual = model.getGrid();
+        for (int i = 0; i < actual.length; i++) {
+          if (expected[i] < 0 && actual[i] >= 0) {
+            spawnCell = i;
+            spawnLog = actual[i];
+            break;
+          }
+        }
+      }
+      if (spawnCell != noSpawn(unitBytes)) {
+        shadow.addNumberAt(spawnCell, spawnLog);
+      }
+      if (gridSize == BitBoard.SIZE ? shadow.getBitBoard() != model.getBitBoard()
+              : !Arrays.equals(shadow.getGrid(), model.getGrid())) {
+        throw new IllegalStateException("The model doesn't follow from the recorded game and move " + direction);
+      }
+      addUnit(direction.ordinal(), spawnCell, spawnLog);
+    }
+
+    /**
+     * Hands the game to the writer. Further moves can't be recorded.
+     */
+    public void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      ByteBuffer game = ByteBuffer.allocate(GAME_HEADER_BYTES + numUnits * unitBytes).order(ByteOrder.LITTLE_ENDIAN);
+      game.put((byte) gridSize)
+              .put((byte) (seed != null ? FLAG_SEEDED : 0))
+              .putShort((short) numStartCells)
+              .putInt(numUnits - numStartCells)
+              .putLong(seed != null ? seed : 0)
+              .put(units, 0, numUnits * unitBytes)
+              .flip();
+      append(game);
+    }
+
+    private void addUnit(int directionOrdinal, int cell, byte logValue) {
+      if (finished) {
+        throw new IllegalStateException("The game has been finished");
+      }
+      int unit = directionOrdinal | (logValue == 2 ? 4 : 0) | cell << 3;
+      if ((numUnits + 1) * unitBytes > units.length) {
+        units = Arrays.copyOf(units, units.length * 2);
+      }
+      units[numUnits * unitBytes] = (byte) unit;
+      if (unitBytes == 2) {
+        units[numUnits * unitBytes + 1] = (byte) (unit >>> 8);
+      }
+      numUnits++;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package games;
+
+/**
+ * A bot that chooses randomly between the moves that would change the grid, and gives up when there are none.
+ *
+ * Used as a rollout policy it never wastes a step on a move that does nothing, and ends the rollout on the same step
+ * that finds the game is over.
+ */
+public class LegalRandomBot implements Bot {
+
+  /**
+   * Returns a random valid direction, or null if there is no valid move.
+   */
+  @Override
+  public Direction getNextMove(GameModel model) {
+    int validMoves = model.getValidMoveMask();
+    if (validMoves == 0) {
+      return null;
+    }
+    // drop the lowest valid moves until the chosen one is the lowest left
+    for (int i = model.getRandomSource().nextInt(Integer.bitCount(validMoves)); i > 0; i--) {
+      validMoves &= validMoves - 1;
+    }
+    return Direction.VALUES[Integer.numberOfTrailingZeros(validMoves)];
+  }
+}
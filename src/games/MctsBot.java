@@ -0,0 +1,422 @@
+package games;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import static java.lang.Math.max;
+
+/**
+ * Searches a tree of moves and spawns with Monte Carlo Tree Search, picking moves within the tree by the UCT rule and
+ * scoring its leaves with rollouts of the core bot.
+ *
+ * The tree alternates between decision nodes, where a move is picked, and chance nodes, where a number spawns. Chance
+ * nodes draw their spawns with the game's own odds, so the values in the tree are averages over the spawns.
+ *
+ * Several workers search the same tree at once. Node statistics are updated with compare-and-set rather than locks,
+ * and a worker on its way down adds a virtual loss to every node it passes, so that the other workers spread out over
+ * the tree instead of all following the same path.
+ *
+ * The bot keeps the subtree below the move it picked. If the next position it is asked about is one of the spawns of
+ * that move, the search carries on from there with the simulations it already has.
+ */
+public class MctsBot implements Bot {
+
+  /**
+   * Simulations per move per thread, for {@link #getNextMove}.
+   */
+  private static final int NUM_SIMULATIONS = 8000;
+
+  /**
+   * Rollouts end this many moves below the root, so that all leaves are scored at the same depth.
+   */
+  private static final int MAX_MOVE_LOOKAHEAD = 14;
+
+  /**
+   * Weight of the exploration term of UCT, relative to the average score of the parent.
+   */
+  private static final double EXPLORATION = 0.25;
+
+  /**
+   * A time budgeted search runs at least this many simulations, so that it always has a move to pick.
+   */
+  private static final int MIN_SIMULATIONS = 64;
+
+  private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+  private final Bot coreBot;
+
+  private final BoardEvaluator evaluator;
+
+  private final SearchExecutor executor;
+
+  private final int parallelism;
+
+  // Every worker of every search draws from its own stream derived from this
+  private final long seed;
+
+  private long numSearches;
+
+  // The move picked by the last search, whose spawns may become the next root
+  private ChanceNode lastMove;
+
+  public MctsBot(Bot coreBot) {
+    this(coreBot, NUM_THREADS);
+  }
+
+  /**
+   * @param parallelism the number of workers to search with. This doesn't change the number of simulations.
+   */
+  public MctsBot(Bot coreBot, int parallelism) {
+    this(coreBot, parallelism, ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * @param seed makes a search with a single worker reproducible. With several workers the tree depends on timing.
+   */
+  public MctsBot(Bot coreBot, int parallelism, long seed) {
+    this(coreBot, SearchExecutor.shared(), parallelism, seed);
+  }
+
+  /**
+   * @param executor runs the workers, on at most parallelism of its threads at once.
+   */
+  public MctsBot(Bot coreBot, SearchExecutor executor, int parallelism, long seed) {
+    this(coreBot, MonteCarloBot.DEFAULT_EVALUATOR, executor, parallelism, seed);
+  }
+
+  /**
+   * @param evaluator scores the grids that rollouts end on, and those of finished games.
+   */
+  public MctsBot(Bot coreBot, BoardEvaluator evaluator, SearchExecutor executor, int parallelism, long seed) {
+    this.coreBot = coreBot;
+    this.evaluator = evaluator;
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.seed = seed;
+  }
+
+  @Override
+  public Direction getNextMove(GameModel model) {
+    return decideNextMove(model).getDirection();
+  }
+
+  @Override
+  public MoveDecision decideNextMove(GameModel model) {
+    return search(model, (long) NUM_SIMULATIONS * NUM_THREADS, Long.MAX_VALUE);
+  }
+
+  /**
+   * Searches until the time budget runs out. The number of simulations reported for each direction includes those
+   * kept from earlier searches.
+   */
+  @Override
+  public MoveDecision getNextMoveWithin(GameModel model, long timeBudgetMillis) {
+    return search(model, Long.MAX_VALUE, System.nanoTime() + timeBudgetMillis * 1_000_000);
+  }
+
+  /**
+   * Runs simulations until either their number or the deadline is reached, then picks the most simulated move.
+   */
+  private MoveDecision search(GameModel model, long maxSimulations, long deadlineNanos) {
+
+    DecisionNode root = findRoot(model);
+    int horizon = root.depth + MAX_MOVE_LOOKAHEAD;
+    AtomicLong numStarted = new AtomicLong();
+    long searchSeed = SplitMix64.seedOfStream(seed, numSearches++);
+
+    List<Runnable> workers = new ArrayList<>();
+    for (int i = 0; i < parallelism; i++) {
+      RandomSource random = new SplitMix64(SplitMix64.seedOfStream(searchSeed, i));
+      workers.add(() -> {
+        GameModel scratch = GameModel.copyOf(model);
+        scratch.setRandomSource(random);
+        List<Node> path = new ArrayList<>();
+        for (long n = numStarted.getAndIncrement();
+             n < maxSimulations && (n < MIN_SIMULATIONS || System.nanoTime() < deadlineNanos);
+             n = numStarted.getAndIncrement()) {
+          simulate(root, horizon, scratch, random, path);
+        }
+      });
+    }
+    executor.runAll(workers, parallelism);
+
+    float[] scores = new float[Direction.VALUES.length];
+    long[] numSimulations = new long[Direction.VALUES.length];
+    Arrays.fill(scores, Float.NEGATIVE_INFINITY);
+    ChanceNode[] children = root.expand();
+    ChanceNode bestChild = null;
+    Direction bestDirection = null;
+    for (Direction direction : Direction.VALUES) {
+      ChanceNode child = children[direction.ordinal()];
+      if (child == null) {
+        continue;
+      }
+      numSimulations[direction.ordinal()] = child.visits;
+      if (child.visits > 0) {
+        scores[direction.ordinal()] = (float) child.getMeanScore();
+      }
+      // The most simulated move is the one the search trusted most, which is more robust than the best average
+      if (bestChild == null || child.visits > bestChild.visits) {
+        bestChild = child;
+        bestDirection = direction;
+      }
+    }
+    lastMove = bestChild;
+    return new MoveDecision(bestDirection, scores, numSimulations);
+  }
+
+  /**
+   * Returns the node of the last move's subtree for the given position, or a new tree if the position isn't in it.
+   */
+  private DecisionNode findRoot(GameModel model) {
+    if (lastMove != null) {
+      for (int i = 0; i < lastMove.children.length(); i++) {
+        DecisionNode child = lastMove.children.get(i);
+        if (child != null && isSamePosition(child.state, model)) {
+          return child;
+        }
+      }
+    }
+    return new DecisionNode(GameModel.copyOf(model), 0);
+  }
+
+  private static boolean isSamePosition(GameModel a, GameModel b) {
+    if (a.getGridSize() != b.getGridSize()) {
+      return false;
+    }
+    if (a.getGridSize() == BitBoard.SIZE) {
+      return a.getBitBoard() == b.getBitBoard();
+    }
+    return Arrays.equals(a.getGrid(), b.getGrid());
+  }
+
+  /**
+   * Runs one simulation: walks down the tree from the root, expands the leaf it reaches or plays a rollout from it,
+   * and adds the score to every node on the way.
+   */
+  private void simulate(DecisionNode root, int horizon, GameModel scratch, RandomSource random, List<Node> path) {
+
+    path.clear();
+    DecisionNode node = root;
+    node.addVirtualLoss();
+    path.add(node);
+    float score;
+    while (true) {
+      // Expand a node only on its second visit, so that the many spawns that are only ever visited once stay leaves
+      if (node.visits == 0 || node.depth >= horizon) {
+        score = rollout(node, horizon, scratch);
+        break;
+      }
+      ChanceNode move = node.select(node.expand());
+      if (move == null) {
+        // No valid move, so the game is over. Score a private copy, as the grid of a shared 4x4 state is a buffer.
+        node.state.copyInto(scratch);
+        score = evaluator.evaluate(scratch);
+        break;
+      }
+      move.addVirtualLoss();
+      path.add(move);
+      node = move.sample(random);
+      node.addVirtualLoss();
+      path.add(node);
+    }
+
+    for (Node visited : path) {
+      visited.update(score);
+    }
+  }
+
+  /**
+   * Plays the core bot from the node down to the horizon, and returns the score of the grid it ends on.
+   */
+  private float rollout(DecisionNode node, int horizon, GameModel scratch) {
+    node.state.copyInto(scratch);
+    for (int depth = node.depth; depth < horizon; depth++) {
+      Direction move = coreBot.getNextMove(scratch);
+      // Only a move that changed nothing needs the full check, to tell a wasted step from the end of the game
+      if (move == null || !scratch.executeMove(move) && !scratch.isThereAValidMove()) {
+        break;
+      }
+      scratch.addNumber();
+    }
+    return evaluator.evaluate(scratch);
+  }
+
+  /**
+   * Statistics shared by both kinds of node. A virtual loss counts as a visit that scored nothing, until the
+   * simulation that added it reports its real score.
+   */
+  private abstract static class Node {
+
+    private static final AtomicLongFieldUpdater<Node> VISITS =
+            AtomicLongFieldUpdater.newUpdater(Node.class, "visits");
+
+    private static final AtomicLongFieldUpdater<Node> TOTAL_SCORE_BITS =
+            AtomicLongFieldUpdater.newUpdater(Node.class, "totalScoreBits");
+
+    private static final AtomicIntegerFieldUpdater<Node> VIRTUAL_LOSSES =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "virtualLosses");
+
+    final GameModel state;
+
+    // The number of moves from the position the tree was started from
+    final int depth;
+
+    volatile long visits;
+
+    // The sum of the scores of all visits, as the bits of a double
+    volatile long totalScoreBits;
+
+    volatile int virtualLosses;
+
+    Node(GameModel state, int depth) {
+      this.state = state;
+      this.depth = depth;
+    }
+
+    void addVirtualLoss() {
+      VIRTUAL_LOSSES.incrementAndGet(this);
+    }
+
+    /**
+     * Adds the score of a finished simulation, and takes back the virtual loss it added on the way down.
+     */
+    void update(double score) {
+      long oldBits;
+      do {
+        oldBits = totalScoreBits;
+      } while (!TOTAL_SCORE_BITS.compareAndSet(this, oldBits,
+              Double.doubleToRawLongBits(Double.longBitsToDouble(oldBits) + score)));
+      VISITS.incrementAndGet(this);
+      VIRTUAL_LOSSES.decrementAndGet(this);
+    }
+
+    double getTotalScore() {
+      return Double.longBitsToDouble(totalScoreBits);
+    }
+
+    /**
+     * Returns the average score of the finished visits.
+     */
+    double getMeanScore() {
+      long numVisits = visits;
+      return numVisits == 0 ? 0 : getTotalScore() / numVisits;
+    }
+  }
+
+  /**
+   * A position where a move is to be picked.
+   */
+  private static final class DecisionNode extends Node {
+
+    private static final AtomicReferenceFieldUpdater<DecisionNode, ChanceNode[]> CHILDREN =
+            AtomicReferenceFieldUpdater.newUpdater(DecisionNode.class, ChanceNode[].class, "children");
+
+    // Indexed by Direction ordinal, with null for moves that change nothing. Null until the node is expanded.
+    private volatile ChanceNode[] children;
+
+    DecisionNode(GameModel state, int depth) {
+      super(state, depth);
+    }
+
+    /**
+     * Creates the children of this node unless that has already been done, and returns them.
+     */
+    ChanceNode[] expand() {
+      ChanceNode[] expanded = children;
+      if (expanded != null) {
+        return expanded;
+      }
+      expanded = new ChanceNode[Direction.VALUES.length];
+      for (Direction direction : Direction.VALUES) {
+        GameModel moved = GameModel.copyOf(state);
+        if (moved.executeMove(direction)) {
+          expanded[direction.ordinal()] = new ChanceNode(moved, depth + 1);
+        }
+      }
+      // Another worker may have expanded the node meanwhile, in which case its children win
+      CHILDREN.compareAndSet(this, null, expanded);
+      return children;
+    }
+
+    /**
+     * Returns the child with the highest upper confidence bound, trying every child once first, or null if there are
+     * no children.
+     */
+    ChanceNode select(ChanceNode[] candidates) {
+      // Scale the exploration term to the scores, which grow as the game goes on
+      double scale = max(getMeanScore(), 1);
+      double logVisits = Math.log(max(visits + virtualLosses, 1));
+      ChanceNode best = null;
+      double bestBound = Double.NEGATIVE_INFINITY;
+      for (ChanceNode child : candidates) {
+        if (child == null) {
+          continue;
+        }
+        long childVisits = child.visits + child.virtualLosses;
+        if (childVisits == 0) {
+          return child;
+        }
+        double bound = child.getTotalScore() / childVisits / scale
+                + EXPLORATION * Math.sqrt(logVisits / childVisits);
+        if (bound > bestBound) {
+          bestBound = bound;
+          best = child;
+        }
+      }
+      return best;
+    }
+  }
+
+  /**
+   * A position after a move, where a number is about to spawn.
+   */
+  private static final class ChanceNode extends Node {
+
+    // The cells a number can spawn in
+    private final int[] emptyCells;
+
+    // The position after each spawn, at index 2 * (index into emptyCells) + (log value - 1). Created when first drawn.
+    final AtomicReferenceArray<DecisionNode> children;
+
+    ChanceNode(GameModel state, int depth) {
+      super(state, depth);
+      // A move that changed the grid always leaves at least one empty cell
+      emptyCells = new int[state.getNumEmptyCells()];
+      byte[] grid = state.getGrid();
+      for (int i = 0, n = 0; i < grid.length; i++) {
+        if (grid[i] < 0) {
+          emptyCells[n++] = i;
+        }
+      }
+      children = new AtomicReferenceArray<>(2 * emptyCells.length);
+    }
+
+    /**
+     * Draws a spawn with the game's odds, and returns the position after it.
+     */
+    DecisionNode sample(RandomSource random) {
+      long bits = random.nextLong();
+      int cell = RandomSource.boundedInt(bits >>> 32, emptyCells.length);
+      byte logValue = GameModel.NumberPlacer.numberToAdd(bits);
+      int index = 2 * cell + logValue - 1;
+
+      DecisionNode child = children.get(index);
+      if (child == null) {
+        GameModel spawned = GameModel.copyOf(state);
+        spawned.addNumberAt(emptyCells[cell], logValue);
+        // Another worker may have drawn the same spawn meanwhile, in which case its node wins
+        children.compareAndSet(index, null, new DecisionNode(spawned, depth));
+        child = children.get(index);
+      }
+      return child;
+    }
+  }
+}
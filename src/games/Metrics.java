@@ -0,0 +1,290 @@
+package games;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the hot paths of the bots and the engine: how long moves and searches take, how
+ * many rollouts run and how long they last, how often moves change nothing, and how many search tasks wait for a
+ * thread.
+ *
+ * Metrics are off unless the JVM is started with -Dgames.metrics=true. The switch is a static final constant, so with
+ * metrics off the JIT compiles the instrumentation away, and the hot paths cost exactly what they did without it.
+ * With metrics on, they are registered as a {@link MetricsMXBean} for JConsole and the like, and dumped as text to
+ * standard out every 10 seconds, or every -Dgames.metrics.interval=N seconds (0 for never).
+ *
+ * Counters are striped {@link LongAdder}s, so threads counting at once don't contend for a cache line. Rollouts are
+ * counted one at a time or a batch at a time by the thread that played them, rather than per move.
+ */
+public final class Metrics {
+
+  static final boolean ENABLED = Boolean.getBoolean("games.metrics");
+
+  static final String OBJECT_NAME = "games:type=Metrics";
+
+  private static final long DUMP_INTERVAL_SECONDS = Long.getLong("games.metrics.interval", 10);
+
+  private static final LatencyHistogram moveLatency = new LatencyHistogram();
+
+  private static final LatencyHistogram searchLatency = new LatencyHistogram();
+
+  private static final LongAdder rollouts = new LongAdder();
+
+  private static final LongAdder rolloutMoves = new LongAdder();
+
+  private static final LongAdder rolloutIllegalMoves = new LongAdder();
+
+  private static final LongAdder cutShortRollouts = new LongAdder();
+
+  private static final LongAdder engineMoves = new LongAdder();
+
+  private static final LongAdder engineIllegalMoves = new LongAdder();
+
+  // Goes up by the number of tasks a search hands to its executor, and down as each one starts
+  private static final LongAdder queuedSearchTasks = new LongAdder();
+
+  private static volatile long resetNanos = System.nanoTime();
+
+  static {
+    if (ENABLED) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+      } catch (JMException e) {
+        System.err.println("Could not register the metrics MBean: " + e);
+      }
+      if (DUMP_INTERVAL_SECONDS > 0) {
+        startDumping();
+      }
+    }
+  }
+
+  private Metrics() {
+  }
+
+  /**
+   * Records how long a bot took to decide a move.
+   */
+  static void recordMove(long nanos) {
+    moveLatency.record(nanos);
+  }
+
+  /**
+   * Records how long a Monte Carlo search took.
+   */
+  static void recordSearch(long nanos) {
+    searchLatency.record(nanos);
+  }
+
+  /**
+   * Counts finished rollouts.
+   *
+   * @param numMoves        the moves they played in total, including those that changed nothing.
+   * @param numIllegalMoves of those, the moves that changed nothing.
+   * @param numCutShort     the rollouts that were still going when they hit the lookahead limit.
+   */
+  static void recordRollouts(long numRollouts, long numMoves, long numIllegalMoves, long numCutShort) {
+    rollouts.add(numRollouts);
+    rolloutMoves.add(numMoves);
+    rolloutIllegalMoves.add(numIllegalMoves);
+    cutShortRollouts.add(numCutShort);
+  }
+
+  static void recordEngineMove(boolean moved) {
+    engineMoves.increment();
+    if (!moved) {
+      engineIllegalMoves.increment();
+    }
+  }
+
+  static void searchTasksQueued(int numTasks) {
+    queuedSearchTasks.add(numTasks);
+  }
+
+  static void searchTaskStarted() {
+    queuedSearchTasks.decrement();
+  }
+
+  /**
+   * Returns a text dump of all the metrics, since the start of the process or the last reset.
+   */
+  public static String report() {
+
+    double seconds = secondsSinceReset();
+    long numRollouts = rollouts.sum();
+    long numRolloutMoves = rolloutMoves.sum();
+    long numEngineMoves = engineMoves.sum();
+    return String.format("Metrics over %.1fs%n", seconds)
+            + "  Moves: " + latencyReport(moveLatency) + String.format("%n")
+            + "  Searches: " + latencyReport(searchLatency) + String.format("%n")
+            + String.format("  Rollouts: %d (%.0f/sec) Avg length: %.2f moves Cut short: %.1f%%"
+                    + " Illegal moves: %.1f%%%n", numRollouts, numRollouts / seconds,
+            ratio(numRolloutMoves, numRollouts), 100 * ratio(cutShortRollouts.sum(), numRollouts),
+            100 * ratio(rolloutIllegalMoves.sum(), numRolloutMoves))
+            + String.format("  Engine moves: %d (%.0f/sec) Illegal: %.1f%%%n", numEngineMoves, numEngineMoves / seconds,
+            100 * ratio(engineIllegalMoves.sum(), numEngineMoves))
+            + "  Search queue depth: " + queuedSearchTasks.sum();
+  }
+
+  /**
+   * Clears all the metrics except the search queue depth, which is a level rather than a count. Counts made while
+   * clearing may be partly kept.
+   */
+  public static void reset() {
+    moveLatency.reset();
+    searchLatency.reset();
+    rollouts.reset();
+    rolloutMoves.reset();
+    rolloutIllegalMoves.reset();
+    cutShortRollouts.reset();
+    engineMoves.reset();
+    engineIllegalMoves.reset();
+    resetNanos = System.nanoTime();
+  }
+
+  private static void startDumping() {
+    ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "metrics-dump");
+      thread.setDaemon(true);
+      return thread;
+    });
+    dumper.scheduleAtFixedRate(() -> System.out.println(report()), DUMP_INTERVAL_SECONDS, DUMP_INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
+  }
+
+  private static String latencyReport(LatencyHistogram histogram) {
+    return String.format("%d Latency ms: mean %.2f p50 %.2f p90 %.2f p99 %.2f max %.2f", histogram.getCount(),
+            histogram.getMeanNanos() / 1e6, histogram.getPercentileNanos(50) / 1e6,
+            histogram.getPercentileNanos(90) / 1e6, histogram.getPercentileNanos(99) / 1e6,
+            histogram.getMaxNanos() / 1e6);
+  }
+
+  private static double secondsSinceReset() {
+    return Math.max(1e-9, (System.nanoTime() - resetNanos) / 1e9);
+  }
+
+  private static double ratio(long numerator, long denominator) {
+    return denominator > 0 ? numerator / (double) denominator : 0;
+  }
+
+  /**
+   * Serves the metrics over JMX.
+   */
+  private static class Bean implements MetricsMXBean {
+
+    @Override
+    public double getSecondsSinceReset() {
+      return secondsSinceReset();
+    }
+
+    @Override
+    public long getMoves() {
+      return moveLatency.getCount();
+    }
+
+    @Override
+    public double getMoveLatencyMeanMillis() {
+      return moveLatency.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public double getMoveLatencyP50Millis() {
+      return moveLatency.getPercentileNanos(50) / 1e6;
+    }
+
+    @Override
+    public double getMoveLatencyP99Millis() {
+      return moveLatency.getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public double getMoveLatencyMaxMillis() {
+      return moveLatency.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public long getSearches() {
+      return searchLatency.getCount();
+    }
+
+    @Override
+    public double getSearchLatencyMeanMillis() {
+      return searchLatency.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public double getSearchLatencyP50Millis() {
+      return searchLatency.getPercentileNanos(50) / 1e6;
+    }
+
+    @Override
+    public double getSearchLatencyP99Millis() {
+      return searchLatency.getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public double getSearchLatencyMaxMillis() {
+      return searchLatency.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public long getRollouts() {
+      return rollouts.sum();
+    }
+
+    @Override
+    public double getRolloutsPerSecond() {
+      return rollouts.sum() / secondsSinceReset();
+    }
+
+    @Override
+    public double getAverageRolloutLength() {
+      return ratio(rolloutMoves.sum(), rollouts.sum());
+    }
+
+    @Override
+    public double getCutShortRolloutFraction() {
+      return ratio(cutShortRollouts.sum(), rollouts.sum());
+    }
+
+    @Override
+    public double getRolloutIllegalMoveRate() {
+      return ratio(rolloutIllegalMoves.sum(), rolloutMoves.sum());
+    }
+
+    @Override
+    public long getEngineMoves() {
+      return engineMoves.sum();
+    }
+
+    @Override
+    public double getEngineMovesPerSecond() {
+      return engineMoves.sum() / secondsSinceReset();
+    }
+
+    @Override
+    public double getEngineIllegalMoveRate() {
+      return ratio(engineIllegalMoves.sum(), engineMoves.sum());
+    }
+
+    @Override
+    public long getSearchQueueDepth() {
+      return queuedSearchTasks.sum();
+    }
+
+    @Override
+    public String getReport() {
+      return report();
+    }
+
+    @Override
+    public void reset() {
+      Metrics.reset();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package games;
+
+/**
+ * The JMX view of {@link Metrics}, registered as {@value Metrics#OBJECT_NAME} when metrics are enabled. Counts and
+ * rates are since the start of the process, or the last {@link #reset}.
+ */
+public interface MetricsMXBean {
+
+  double getSecondsSinceReset();
+
+  /**
+   * Returns the number of moves that bots decided in BotEvaluator games.
+   */
+  long getMoves();
+
+  double getMoveLatencyMeanMillis();
+
+  double getMoveLatencyP50Millis();
+
+  double getMoveLatencyP99Millis();
+
+  double getMoveLatencyMaxMillis();
+
+  /**
+   * Returns the number of Monte Carlo searches, one per move the bot is asked for.
+   */
+  long getSearches();
+
+  double getSearchLatencyMeanMillis();
+
+  double getSearchLatencyP50Millis();
+
+  double getSearchLatencyP99Millis();
+
+  double getSearchLatencyMaxMillis();
+
+  long getRollouts();
+
+  double getRolloutsPerSecond();
+
+  /**
+   * Returns the mean number of moves a rollout played before its game ended or it was cut short.
+   */
+  double getAverageRolloutLength();
+
+  /**
+   * Returns the fraction of rollouts that were cut short at the lookahead limit rather than ending with the game.
+   */
+  double getCutShortRolloutFraction();
+
+  /**
+   * Returns the fraction of rollout moves that changed nothing, out of all the moves rollouts played.
+   */
+  double getRolloutIllegalMoveRate();
+
+  /**
+   * Returns the number of moves played through {@link GameModel#executeMove}, including those that changed nothing.
+   */
+  long getEngineMoves();
+
+  double getEngineMovesPerSecond();
+
+  double getEngineIllegalMoveRate();
+
+  /**
+   * Returns the number of search tasks that have been handed to a {@link SearchExecutor} and not yet started.
+   */
+  long getSearchQueueDepth();
+
+  /**
+   * Returns a text dump of all the metrics.
+   */
+  String getReport();
+
+  void reset();
+}
@@ -1,12 +1,13 @@
 package games;
 
-import com.google.common.util.concurrent.AtomicDouble;
-
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongToDoubleFunction;
 
 import static java.lang.Math.max;
+import static java.lang.Math.min;
 
 /**
  * Plays the game with another bot until completion for a fixed number of simulations for each possible move.
@@ -29,10 +30,30 @@ public class MonteCarloBot implements Bot {
   /**
    * Cut simulations short and score the grid after this many moves
    */
-  private static final int MAX_MOVE_LOOKAHEAD = 14;
+  static final int MAX_MOVE_LOOKAHEAD = 14;
 
   private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
 
+  /**
+   * Split simulations into tasks of at most this many, small enough for the threads to even out uneven rollouts.
+   */
+  private static final int SIMULATIONS_PER_TASK = 250;
+
+  /**
+   * With adaptive allocation, stop simulating a move once its score is this many standard errors below the best move.
+   */
+  private static final double ELIMINATION_STANDARD_ERRORS = 2.58; // 99% confidence
+
+  /**
+   * How to spread simulations across the valid moves.
+   */
+  public enum Allocation {
+    // Every valid move gets the same number of simulations
+    UNIFORM,
+    // Simulate in rounds, and drop moves whose confidence interval falls entirely below that of the best move
+    ADAPTIVE,
+  }
+
 
   /**
    * Score gradient array for the gradient scoring method.
@@ -58,83 +79,269 @@ public class MonteCarloBot implements Bot {
   };
 
 
+  /**
+   * Scores the grids that simulations end on, unless the bot is given another evaluator.
+   */
+  public static final BoardEvaluator DEFAULT_EVALUATOR = MonteCarloBot::computeScore;
+
   private final Bot coreBot;
 
-  private final ExecutorService threadPool = Executors.newFixedThreadPool(NUM_THREADS);
+  private final BoardEvaluator evaluator;
+
+  // Plays the rollouts of 4x4 boards in batches instead of through the core bot, or null if it can't stand in for it
+  private final RolloutBatch.Policy batchPolicy;
+
+  // Scores the packed boards of batched rollouts, or null if the evaluator has no way to
+  private final LongToDoubleFunction batchEvaluator;
+
+  // Caches the average score of boards after each move, or null to always simulate. Mirror images score alike, so
+  // boards are stored in their canonical form.
+  private final TranspositionTable transpositionTable;
+
+  private final Allocation allocation;
+
+  private final SearchExecutor executor;
+
+  private final int parallelism;
+
+  // Every simulation draws from its own stream derived from this, the board and its place in the search
+  private final long seed;
 
   public static MonteCarloBot makeRandomBased() {
 
     return new MonteCarloBot(new RandomBot());
   }
 
+  /**
+   * Returns a random based bot whose simulations only ever make valid moves.
+   */
+  public static MonteCarloBot makeLegalMoveBased() {
+
+    return new MonteCarloBot(new LegalRandomBot());
+  }
+
+  /**
+   * Returns a random based bot that stops simulating clearly inferior moves early.
+   */
+  public static MonteCarloBot makeAdaptive() {
+
+    return new MonteCarloBot(new RandomBot(), null, Allocation.ADAPTIVE);
+  }
+
   public MonteCarloBot(Bot coreBot) {
+    this(coreBot, null);
+  }
+
+  public MonteCarloBot(Bot coreBot, TranspositionTable transpositionTable) {
+    this(coreBot, transpositionTable, Allocation.UNIFORM);
+  }
+
+  public MonteCarloBot(Bot coreBot, TranspositionTable transpositionTable, Allocation allocation) {
+    this(coreBot, transpositionTable, allocation, NUM_THREADS);
+  }
+
+  /**
+   * @param parallelism the number of threads to simulate on. This doesn't change the number of simulations, so that
+   *                    the bot plays equally well however many cores it is given.
+   */
+  public MonteCarloBot(Bot coreBot, TranspositionTable transpositionTable, Allocation allocation, int parallelism) {
+    this(coreBot, transpositionTable, allocation, parallelism, ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * @param seed makes the simulations reproducible: with the same seed and settings, the bot always scores a board the
+   *             same way, however its simulations are scheduled. Time budgeted searches still depend on timing.
+   */
+  public MonteCarloBot(Bot coreBot, TranspositionTable transpositionTable, Allocation allocation, int parallelism,
+                       long seed) {
+    this(coreBot, transpositionTable, allocation, SearchExecutor.shared(), parallelism, seed);
+  }
+
+  /**
+   * @param executor runs the simulations, on at most parallelism of its threads at once.
+   */
+  public MonteCarloBot(Bot coreBot, TranspositionTable transpositionTable, Allocation allocation,
+                       SearchExecutor executor, int parallelism, long seed) {
+    this(coreBot, DEFAULT_EVALUATOR, transpositionTable, allocation, executor, parallelism, seed);
+  }
+
+  /**
+   * @param evaluator scores the grids that simulations end on.
+   */
+  public MonteCarloBot(Bot coreBot, BoardEvaluator evaluator, TranspositionTable transpositionTable,
+                       Allocation allocation, SearchExecutor executor, int parallelism, long seed) {
     this.coreBot = coreBot;
+    this.evaluator = evaluator;
+    this.batchPolicy = RolloutBatch.policyOf(coreBot);
+    this.batchEvaluator = batchEvaluatorOf(evaluator);
+    this.transpositionTable = transpositionTable;
+    this.allocation = allocation;
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.seed = seed;
   }
 
   @Override
   public Direction getNextMove(GameModel model) {
+    return decideNextMove(model).getDirection();
+  }
 
-    float bestScore = Float.NEGATIVE_INFINITY;
-    Direction bestDirection = null;
+  @Override
+  public MoveDecision decideNextMove(GameModel model) {
+
+    if (allocation == Allocation.ADAPTIVE) {
+      // Spend at most the uniform budget, in smaller rounds
+      int simulationsPerRound = SIMULATIONS_PER_TASK * NUM_THREADS;
+      int maxRounds = (NUM_SIMULATIONS * NUM_THREADS + simulationsPerRound - 1) / simulationsPerRound;
+      return search(model, simulationsPerRound, maxRounds, Long.MAX_VALUE);
+    }
+    return search(model, NUM_SIMULATIONS * NUM_THREADS, 1, Long.MAX_VALUE);
+  }
+
+  /**
+   * Simulates in rounds until the time budget runs out, then returns the best move so far.
+   * At least one round is always run, and a round that has started is finished, so the budget may be overshot by
+   * the length of one round.
+   */
+  @Override
+  public MoveDecision getNextMoveWithin(GameModel model, long timeBudgetMillis) {
+
+    long deadlineNanos = System.nanoTime() + timeBudgetMillis * 1_000_000;
+    return search(model, SIMULATIONS_PER_TASK * NUM_THREADS, Integer.MAX_VALUE, deadlineNanos);
+  }
+
+  /**
+   * Runs rounds of the given number of simulations for each valid move, until either the number of rounds or the
+   * deadline is reached. With adaptive allocation, also stops once only one move is left in the running.
+   */
+  private MoveDecision search(GameModel model, int simulationsPerRound, int maxRounds, long deadlineNanos) {
+
+    long startNanos = Metrics.ENABLED ? System.nanoTime() : 0;
+    boolean useTable = transpositionTable != null && model.getGridSize() == BitBoard.SIZE;
+    float[] scores = new float[Direction.VALUES.length];
+    long[] numSimulations = new long[Direction.VALUES.length];
+    double[] totalScores = new double[Direction.VALUES.length];
+    double[] totalSquaredScores = new double[Direction.VALUES.length];
+    GameModel[] movedModels = new GameModel[Direction.VALUES.length];
+    int numCandidates = 0;
 
     for (Direction direction : Direction.VALUES) {
 
+      int index = direction.ordinal();
+      scores[index] = Float.NEGATIVE_INFINITY;
       GameModel movedModel = GameModel.copyOf(model);
       if (!movedModel.executeMove(direction)) {
         continue;
       }
 
-      AtomicDouble scoreForMove = new AtomicDouble();
-      CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+      if (useTable) {
+        long entry = transpositionTable.probe(Symmetry.canonicalize(movedModel.getBitBoard()), MAX_MOVE_LOOKAHEAD);
+        if (entry != 0) {
+          scores[index] = TranspositionTable.getValue(entry);
+          continue;
+        }
+      }
+
+      movedModels[index] = movedModel;
+      numCandidates++;
+    }
 
-      for (int i = 0; i < NUM_THREADS; i++) {
-        getAverageScoreAsync(GameModel.copyOf(movedModel), scoreForMove, latch);
+    long boardSeed = SplitMix64.seedOfStream(seed, model.getGridSize() == BitBoard.SIZE
+            ? model.getBitBoard() : Arrays.hashCode(model.getGrid()));
+    boolean[] eliminated = new boolean[Direction.VALUES.length];
+    for (int round = 0; numCandidates > 0 && round < maxRounds && (round == 0 || System.nanoTime() < deadlineNanos);
+         round++) {
+
+      // Submit every direction at once, so that threads move on to other directions rather than idling
+      List<RolloutTask> tasks = new ArrayList<>();
+      for (int i = 0; i < Direction.VALUES.length; i++) {
+        if (movedModels[i] != null && !eliminated[i]) {
+          long directionSeed = SplitMix64.seedOfStream(boardSeed, round * Direction.VALUES.length + i);
+          for (int j = 0; j * SIMULATIONS_PER_TASK < simulationsPerRound; j++) {
+            int numTaskSimulations = min(SIMULATIONS_PER_TASK, simulationsPerRound - j * SIMULATIONS_PER_TASK);
+            tasks.add(new RolloutTask(i, movedModels[i], numTaskSimulations, SplitMix64.seedOfStream(directionSeed, j)));
+          }
+          numSimulations[i] += simulationsPerRound;
+        }
       }
+      executor.runAll(tasks, parallelism);
 
-      try {
-        latch.await();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+      for (RolloutTask task : tasks) {
+        totalScores[task.directionIndex] += task.result.total;
+        totalSquaredScores[task.directionIndex] += task.result.totalSquared;
       }
 
-//      float score = getAverageScore(movedModel);
-//      float score = getBestScore(movedModel);
-      float score = scoreForMove.floatValue();
-      if (score > bestScore) {
-        bestScore = score;
+      if (allocation == Allocation.ADAPTIVE) {
+        if (round > 0) {
+          numCandidates -= eliminateInferiorMoves(totalScores, totalSquaredScores, numSimulations, eliminated);
+        }
+        if (numCandidates == 1) {
+          break;
+        }
+      }
+    }
+
+    float bestScore = Float.NEGATIVE_INFINITY;
+    Direction bestDirection = null;
+    for (Direction direction : Direction.VALUES) {
+      int index = direction.ordinal();
+      if (numSimulations[index] > 0) {
+//        scores[index] = getAverageScore(movedModels[index]);
+//        scores[index] = getBestScore(movedModels[index]);
+        scores[index] = (float) (totalScores[index] / numSimulations[index]);
+        if (useTable) {
+          transpositionTable.store(Symmetry.canonicalize(movedModels[index].getBitBoard()), scores[index],
+                  MAX_MOVE_LOOKAHEAD, null);
+        }
+      }
+      if (scores[index] > bestScore) {
+        bestScore = scores[index];
         bestDirection = direction;
       }
     }
-    return bestDirection;
+    if (Metrics.ENABLED) {
+      Metrics.recordSearch(System.nanoTime() - startNanos);
+    }
+    return new MoveDecision(bestDirection, scores, numSimulations);
   }
 
   /**
-   * Runs the core bot for a number of simulations and returns the average score of the ending grids.
+   * Marks the moves whose confidence interval lies entirely below that of the best move as eliminated.
+   *
+   * @return the number of newly eliminated moves.
    */
-  public float getAverageScore(GameModel startingState) {
-
-    float totalScore = 0;
-    for (int i = 0; i < NUM_SIMULATIONS; i++) {
-      GameModel copy = GameModel.copyOf(startingState);
-      copy.addNumber();
-      totalScore += simulateAndGetScore(copy);
+  private static int eliminateInferiorMoves(double[] totalScores, double[] totalSquaredScores, long[] numSimulations,
+                                            boolean[] eliminated) {
+
+    double[] means = new double[totalScores.length];
+    double[] margins = new double[totalScores.length];
+    double bestLowerBound = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < totalScores.length; i++) {
+      if (eliminated[i] || numSimulations[i] == 0) {
+        continue;
+      }
+      means[i] = totalScores[i] / numSimulations[i];
+      double variance = max(0, totalSquaredScores[i] / numSimulations[i] - means[i] * means[i]);
+      margins[i] = ELIMINATION_STANDARD_ERRORS * Math.sqrt(variance / numSimulations[i]);
+      bestLowerBound = max(bestLowerBound, means[i] - margins[i]);
     }
 
-    return totalScore / NUM_SIMULATIONS;
+    int numEliminated = 0;
+    for (int i = 0; i < totalScores.length; i++) {
+      if (!eliminated[i] && numSimulations[i] > 0 && means[i] + margins[i] < bestLowerBound) {
+        eliminated[i] = true;
+        numEliminated++;
+      }
+    }
+    return numEliminated;
   }
 
-  public void getAverageScoreAsync(GameModel startingState, AtomicDouble scoreAccumulator, CountDownLatch latch) {
+  /**
+   * Runs the core bot for a number of simulations and returns the average score of the ending grids.
+   */
+  public float getAverageScore(GameModel startingState) {
 
-    threadPool.execute(() -> {
-      float totalScore = 0;
-      for (int i = 0; i < NUM_SIMULATIONS; i++) {
-        GameModel copy = GameModel.copyOf(startingState);
-        copy.addNumber();
-        totalScore += simulateAndGetScore(copy);
-      }
-      scoreAccumulator.addAndGet(totalScore / NUM_SIMULATIONS / NUM_THREADS);
-      latch.countDown();
-    });
+    return (float) (simulateFrom(startingState, NUM_SIMULATIONS, RandomSource.threadLocal()).total / NUM_SIMULATIONS);
   }
 
   /**
@@ -143,13 +350,50 @@ public class MonteCarloBot implements Bot {
   public float getBestScore(GameModel startingState) {
 
     float bestScore = 0;
+    GameModel scratch = GameModel.copyOf(startingState);
     for (int i = 0; i < NUM_SIMULATIONS; i++) {
-      bestScore = max(bestScore, simulateAndGetScore(GameModel.copyOf(startingState)));
+      startingState.copyInto(scratch);
+      bestScore = max(bestScore, simulateAndGetScore(scratch));
     }
 
     return bestScore;
   }
 
+  /**
+   * Runs the given number of simulations after adding a number to the starting state, and returns the sum of their
+   * scores. All simulations are played out on a single scratch copy, so the rollouts themselves allocate nothing.
+   * Spawns, and the moves of core bots that draw from the model, come from the given source.
+   * Random core bots on 4x4 boards are played by a {@link RolloutBatch} instead, which draws all its moves from it, and
+   * scores them with the fastest {@link BoardKernel} if the evaluator is the default one.
+   */
+  private ScoreSum simulateFrom(GameModel startingState, int numSimulations, RandomSource random) {
+
+    double totalScore = 0;
+    double totalSquaredScore = 0;
+    if (batchPolicy != null && batchEvaluator != null && startingState.getGridSize() == BitBoard.SIZE) {
+      RolloutBatch batch = evaluator == DEFAULT_EVALUATOR
+              ? new RolloutBatch(batchPolicy, MAX_MOVE_LOOKAHEAD, BoardKernel.best())
+              : new RolloutBatch(batchPolicy, MAX_MOVE_LOOKAHEAD, batchEvaluator);
+      float[] scores = batch.run(startingState.getBitBoard(), numSimulations, random);
+      for (int i = 0; i < numSimulations; i++) {
+        totalScore += scores[i];
+        totalSquaredScore += scores[i] * scores[i];
+      }
+      return new ScoreSum(totalScore, totalSquaredScore);
+    }
+
+    GameModel scratch = GameModel.copyOf(startingState);
+    scratch.setRandomSource(random);
+    for (int i = 0; i < numSimulations; i++) {
+      startingState.copyInto(scratch);
+      scratch.addNumber();
+      float score = simulateAndGetScore(scratch);
+      totalScore += score;
+      totalSquaredScore += score * score;
+    }
+    return new ScoreSum(totalScore, totalSquaredScore);
+  }
+
   /**
    * Runs the core bot until game completion and returns the score achived.
    * Modifies the input {@link GameModel).
@@ -157,22 +401,49 @@ public class MonteCarloBot implements Bot {
   private float simulateAndGetScore(GameModel model) {
 
     int numMoves = 0;
-    while (model.isThereAValidMove() && numMoves < MAX_MOVE_LOOKAHEAD) {
-      model.executeMove(coreBot.getNextMove(model));
+    int numIllegalMoves = 0;
+    while (numMoves < MAX_MOVE_LOOKAHEAD) {
+      Direction move = coreBot.getNextMove(model);
+      if (move == null) {
+        break;
+      }
+      // Only a move that changed nothing needs the full check, to tell a wasted step from the end of the game
+      if (!model.executeMove(move)) {
+        if (!model.isThereAValidMove()) {
+          break;
+        }
+        numIllegalMoves++;
+      }
       model.addNumber();
       numMoves++;
     }
+    if (Metrics.ENABLED) {
+      Metrics.recordRollouts(1, numMoves, numIllegalMoves, numMoves == MAX_MOVE_LOOKAHEAD ? 1 : 0);
+    }
 
-    return computeScore(model);
+    return evaluator.evaluate(model);
 //    return computeGradientScore(model);
 //    return computeEmptyCellScore(model);
   }
 
+  /**
+   * Returns the function that scores packed boards the same way as the evaluator, or null if there is none.
+   */
+  private static LongToDoubleFunction batchEvaluatorOf(BoardEvaluator evaluator) {
+    if (evaluator == DEFAULT_EVALUATOR) {
+      return MonteCarloBot::computeScore;
+    }
+    if (evaluator instanceof NTupleNetwork) {
+      return ((NTupleNetwork) evaluator)::evaluate;
+    }
+    return null;
+  }
+
 
   /**
    * Compute a grid score based on the sum of the values on each cell.
    */
-  private static float computeScore(GameModel model) {
+  static float computeScore(GameModel model) {
 
     float score = 0;
     int numEmptyCells = 0;
@@ -187,24 +458,31 @@ public class MonteCarloBot implements Bot {
   }
 
   /**
-   * Compute a grid score based on the number of empty cells on the board.
+   * Same as {@link #computeScore(GameModel)}, for a board packed into a {@link BitBoard}.
    */
-  private static float computeEmptyCellScore(GameModel model) {
+  static float computeScore(long board) {
+    return computeScore(BitBoard.getCellSum(board), BitBoard.countEmptyCells(board));
+  }
 
-    int numEmptyCells = 0;
-    for (byte b : model.getGrid()) {
-      if (b < 0) {
-        numEmptyCells++;
-      }
-    }
-    return 1 << numEmptyCells;
+  /**
+   * Same as {@link #computeScore(GameModel)}, for a board with the given sum of cell values and number of empty cells.
+   */
+  static float computeScore(int cellSum, int numEmptyCells) {
+    return cellSum * (1 + numEmptyCells * EMPTY_CELL_SCORE_BONUS);
+  }
+
+  /**
+   * Compute a grid score based on the number of empty cells on the board.
+   */
+  static float computeEmptyCellScore(GameModel model) {
+    return 1 << model.getNumEmptyCells();
   }
 
   /**
    * Compute a grid score based on the gradient method, a human heuristic.
    * NOTE: This seems to suck.
    */
-  private static float computeGradientScore(GameModel model) {
+  static float computeGradientScore(GameModel model) {
 
     float bestScore = Float.NEGATIVE_INFINITY;
     int numEmptyCells = 0;
@@ -225,4 +503,48 @@ public class MonteCarloBot implements Bot {
     }
     return bestScore;
   }
+
+  /**
+   * The sum, and sum of squares, of a number of simulation scores.
+   */
+  private static class ScoreSum {
+
+    final double total;
+
+    final double totalSquared;
+
+    ScoreSum(double total, double totalSquared) {
+      this.total = total;
+      this.totalSquared = totalSquared;
+    }
+  }
+
+  /**
+   * Runs a number of simulations after one move and sums their scores. The random stream of each task only depends
+   * on the seed and its place in the search, so the result is the same no matter which thread ends up running it.
+   */
+  private class RolloutTask implements Runnable {
+
+    final int directionIndex;
+
+    private final GameModel startingState;
+
+    private final int numSimulations;
+
+    private final long streamSeed;
+
+    ScoreSum result;
+
+    RolloutTask(int directionIndex, GameModel startingState, int numSimulations, long streamSeed) {
+      this.directionIndex = directionIndex;
+      this.startingState = startingState;
+      this.numSimulations = numSimulations;
+      this.streamSeed = streamSeed;
+    }
+
+    @Override
+    public void run() {
+      result = simulateFrom(startingState, numSimulations, new SplitMix64(streamSeed));
+    }
+  }
 }
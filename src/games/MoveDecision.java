@@ -0,0 +1,63 @@
+package games;
+
+import java.util.Arrays;
+
+/**
+ * The move a bot decided on, along with what it found out about each direction along the way.
+ */
+public class MoveDecision {
+
+  private final Direction direction;
+
+  // Indexed by Direction ordinal. Directions that weren't scored have a score of negative infinity.
+  private final float[] scores;
+
+  // Indexed by Direction ordinal
+  private final long[] numSimulations;
+
+  /**
+   * Creates a decision without any per-direction information.
+   */
+  public MoveDecision(Direction direction) {
+    this(direction, new float[Direction.VALUES.length], new long[Direction.VALUES.length]);
+    Arrays.fill(scores, Float.NEGATIVE_INFINITY);
+  }
+
+  public MoveDecision(Direction direction, float[] scores, long[] numSimulations) {
+    this.direction = direction;
+    this.scores = scores;
+    this.numSimulations = numSimulations;
+  }
+
+  /**
+   * Returns the chosen direction, or null if there was no valid move.
+   */
+  public Direction getDirection() {
+    return direction;
+  }
+
+  public float getScore(Direction direction) {
+    return scores[direction.ordinal()];
+  }
+
+  public long getNumSimulations(Direction direction) {
+    return numSimulations[direction.ordinal()];
+  }
+
+  /**
+   * Returns the number of simulations run across all directions.
+   */
+  public long getTotalSimulations() {
+    long total = 0;
+    for (long n : numSimulations) {
+      total += n;
+    }
+    return total;
+  }
+
+  @Override
+  public String toString() {
+    return "Direction: " + direction + " Scores: " + Arrays.toString(scores)
+            + " Simulations: " + Arrays.toString(numSimulations);
+  }
+}
@@ -0,0 +1,263 @@
+package games;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Scores 4x4 boards with an n-tuple network: a sum of weights looked up in tables, one table per tuple of cells,
+ * indexed by the log values of the tuple's cells packed 4 bits each.
+ *
+ * Every tuple is sampled in all 8 rotations and reflections of the board, all sharing the tuple's table, so that the
+ * score of a board is the same as that of its mirror images.
+ *
+ * Weights are stored in a binary file, all numbers little endian:
+ * <pre>
+ *   int magic ("NTUP"), int version, int number of tuples
+ *   for each tuple: int number of cells, int[] cells
+ *   for each tuple: float[16 ^ number of cells] weights
+ * </pre>
+ * Loading maps the weights into memory rather than reading them, so that even networks of hundreds of megabytes load
+ * at once, and the pages are shared by every process that loads the same file. {@link NTupleTrainer} trains networks.
+ */
+public class NTupleNetwork implements BoardEvaluator {
+
+  /**
+   * Four 6-tuples of two rectangles and two rows and a half, see Yeh et al., "Multi-Stage Temporal Difference Learning
+   * for 2048-like Games". Their tables take 256MB.
+   */
+  public static final int[][] DEFAULT_TUPLES = {
+          {0, 1, 2, 3, 4, 5},
+          {4, 5, 6, 7, 8, 9},
+          {0, 1, 2, 4, 5, 6},
+          {4, 5, 6, 8, 9, 10},
+  };
+
+  private static final int MAGIC = 0x5055544E; // "NTUP" read as a little endian int
+
+  private static final int VERSION = 1;
+
+  private static final int MAX_TUPLE_LENGTH = 7;
+
+  // Every tuple in every symmetry, and the index of the table each of them looks up
+  private final int[][] sampledTuples;
+
+  private final int[] sampledTables;
+
+  private final int[][] tuples;
+
+  final FloatBuffer[] tables;
+
+  private NTupleNetwork(int[][] tuples, FloatBuffer[] tables) {
+    this.tuples = tuples;
+    this.tables = tables;
+
+    Symmetry[] symmetries = Symmetry.VALUES;
+    sampledTuples = new int[tuples.length * symmetries.length][];
+    sampledTables = new int[sampledTuples.length];
+    for (int t = 0; t < tuples.length; t++) {
+      for (int s = 0; s < symmetries.length; s++) {
+        int[] sampled = new int[tuples[t].length];
+        for (int i = 0; i < sampled.length; i++) {
+          sampled[i] = symmetries[s].mapCell(tuples[t][i], BitBoard.SIZE);
+        }
+        sampledTuples[t * symmetries.length + s] = sampled;
+        sampledTables[t * symmetries.length + s] = t;
+      }
+    }
+  }
+
+  /**
+   * Creates a network with all weights zero, held on the heap.
+   */
+  public static NTupleNetwork create(int[][] tuples) {
+    FloatBuffer[] tables = new FloatBuffer[tuples.length];
+    for (int t = 0; t < tuples.length; t++) {
+      tables[t] = FloatBuffer.allocate(tableSize(tuples[t]));
+    }
+    return new NTupleNetwork(copyOf(tuples), tables);
+  }
+
+  /**
+   * Maps a network from a weight file, read only.
+   *
+   * @throws IOException if the file can't be read or isn't a weight file.
+   */
+  public static NTupleNetwork load(Path path) throws IOException {
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, header, 0);
+      if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException("Not an n-tuple weight file: " + path);
+      }
+      long position = header.capacity();
+
+      int[][] tuples = new int[header.getInt(8)][];
+      for (int t = 0; t < tuples.length; t++) {
+        ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, length, position);
+        // Longer tuples would need tables of 4GB or more
+        if (length.getInt(0) < 1 || length.getInt(0) > MAX_TUPLE_LENGTH) {
+          throw new IOException("Bad tuple length " + length.getInt(0) + " in " + path);
+        }
+        ByteBuffer cells = ByteBuffer.allocate(4 * length.getInt(0)).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, cells, position + 4);
+        position += 4 + cells.capacity();
+        tuples[t] = new int[length.getInt(0)];
+        cells.asIntBuffer().get(tuples[t]);
+        for (int cell : tuples[t]) {
+          if (cell < 0 || cell >= BitBoard.NUM_CELLS) {
+            throw new IOException("Bad tuple cell " + cell + " in " + path);
+          }
+        }
+      }
+
+      // A mapping stays valid after its channel is closed
+      FloatBuffer[] tables = new FloatBuffer[tuples.length];
+      for (int t = 0; t < tuples.length; t++) {
+        long tableBytes = 4L * tableSize(tuples[t]);
+        if (position + tableBytes > channel.size()) {
+          throw new IOException("Truncated n-tuple weight file: " + path);
+        }
+        tables[t] = channel.map(FileChannel.MapMode.READ_ONLY, position, tableBytes)
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        position += tableBytes;
+      }
+      return new NTupleNetwork(tuples, tables);
+    }
+  }
+
+  /**
+   * Writes the network to a weight file that {@link #load} can map.
+   */
+  public void save(Path path) throws IOException {
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      int headerInts = 3;
+      for (int[] tuple : tuples) {
+        headerInts += 1 + tuple.length;
+      }
+      ByteBuffer header = ByteBuffer.allocate(4 * headerInts).order(ByteOrder.LITTLE_ENDIAN);
+      IntBuffer ints = header.asIntBuffer();
+      ints.put(MAGIC).put(VERSION).put(tuples.length);
+      for (int[] tuple : tuples) {
+        ints.put(tuple.length).put(tuple);
+      }
+      writeFully(channel, header);
+
+      ByteBuffer chunk = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      for (FloatBuffer table : tables) {
+        for (int i = 0; i < table.capacity(); ) {
+          chunk.clear();
+          FloatBuffer floats = chunk.asFloatBuffer();
+          for (; i < table.capacity() && floats.hasRemaining(); i++) {
+            floats.put(table.get(i));
+          }
+          chunk.limit(4 * floats.position());
+          writeFully(channel, chunk);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the score of a 4x4 board.
+   *
+   * @throws IllegalArgumentException for other grid sizes.
+   */
+  @Override
+  public float evaluate(GameModel model) {
+    if (model.getGridSize() != BitBoard.SIZE) {
+      throw new IllegalArgumentException("N-tuple networks only score 4x4 boards");
+    }
+    return evaluate(model.getBitBoard());
+  }
+
+  /**
+   * Returns the score of a packed board.
+   */
+  float evaluate(long board) {
+    float score = 0;
+    for (int i = 0; i < sampledTuples.length; i++) {
+      score += tables[sampledTables[i]].get(indexOf(board, sampledTuples[i]));
+    }
+    return score;
+  }
+
+  /**
+   * Adds delta to every weight the board looks up. Any number of threads may update a network held on the heap at
+   * once without locking: an update now and then lost to a race costs training less than locks would.
+   */
+  void update(long board, float delta) {
+    for (int i = 0; i < sampledTuples.length; i++) {
+      FloatBuffer table = tables[sampledTables[i]];
+      int index = indexOf(board, sampledTuples[i]);
+      table.put(index, table.get(index) + delta);
+    }
+  }
+
+  /**
+   * Returns a copy of the network held on the heap, which unlike a loaded one can be updated.
+   */
+  NTupleNetwork copyToHeap() {
+    NTupleNetwork copy = create(tuples);
+    for (int t = 0; t < tables.length; t++) {
+      FloatBuffer table = tables[t].duplicate();
+      table.clear();
+      copy.tables[t].put(table);
+    }
+    return copy;
+  }
+
+  /**
+   * Returns the cells of every tuple, unsampled.
+   */
+  public int[][] getTuples() {
+    return copyOf(tuples);
+  }
+
+  /**
+   * Returns the table index of a tuple of cells on the board.
+   */
+  private static int indexOf(long board, int[] cells) {
+    int index = 0;
+    for (int i = 0; i < cells.length; i++) {
+      index |= BitBoard.getCell(board, cells[i]) << (i << 2);
+    }
+    return index;
+  }
+
+  private static int tableSize(int[] tuple) {
+    return 1 << (4 * tuple.length);
+  }
+
+  private static int[][] copyOf(int[][] tuples) {
+    int[][] copy = new int[tuples.length][];
+    for (int t = 0; t < tuples.length; t++) {
+      copy[t] = tuples[t].clone();
+    }
+    return copy;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of n-tuple weight file");
+      }
+    }
+    buffer.flip();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package games;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.max;
+
+/**
+ * Trains an {@link NTupleNetwork} by self-play with temporal difference learning, and saves weights that the bots can
+ * load, e.g. with BotEvaluator --weights.
+ *
+ * The network learns the value of afterstates, the boards right after a move and before the spawn: the score still to
+ * come. The score of a game is the sum of the numbers that spawned in it, so moves themselves earn nothing, and the
+ * reward of a move is the spawn that follows it. Each game plays the move whose afterstate has the best value, and
+ * moves the value of the previous afterstate towards its spawn plus the value of the next afterstate, see Szubert and
+ * Jaskowski, "Temporal Difference Learning of N-Tuple Networks for the Game 2048".
+ *
+ * Games are played on all cores at once, all updating the same weights without locking ("Hogwild"). Their updates
+ * rarely touch the same weights, so the few that are lost to races don't hurt training. Checkpoints are written the
+ * same way, while the games go on, to a temporary file that then replaces the weight file. Bots that mapped the old
+ * file keep reading it until they load the new one.
+ *
+ * Usage: NTupleTrainer --out FILE [--games N] [--threads N] [--seed N] [--checkpoint N] [--resume FILE]
+ *
+ * The default network needs a heap of over 256MB.
+ */
+public class NTupleTrainer {
+
+  private static final String USAGE =
+          "NTupleTrainer --out FILE [--games N] [--threads N] [--seed N] [--checkpoint N] [--resume FILE]";
+
+  /**
+   * Step size of each weight, per point of error.
+   */
+  private static final float LEARNING_RATE = 0.0025f;
+
+  private static final int DEFAULT_GAMES = 100_000;
+
+  private static final int DEFAULT_CHECKPOINT_GAMES = 10_000;
+
+  private static final long REPORT_INTERVAL_MILLIS = 10_000;
+
+  private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+
+  private final NTupleNetwork network;
+
+  private final AtomicInteger gamesPlayed = new AtomicInteger();
+
+  private final AtomicLong movesPlayed = new AtomicLong();
+
+  private final AtomicLong totalScore = new AtomicLong();
+
+  public NTupleTrainer(NTupleNetwork network) {
+    this.network = network;
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    Path out = null;
+    Path resume = null;
+    int numGames = DEFAULT_GAMES;
+    int numThreads = NUM_CORES;
+    int checkpointGames = DEFAULT_CHECKPOINT_GAMES;
+    long seed = ThreadLocalRandom.current().nextLong();
+    for (int i = 0; i < args.length; i += 2) {
+      switch (args[i]) {
+        case "--out":
+          out = Paths.get(CommandLine.value(args, i, USAGE));
+          break;
+        case "--resume":
+          resume = Paths.get(CommandLine.value(args, i, USAGE));
+          break;
+        case "--games":
+          numGames = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        case "--threads":
+          numThreads = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        case "--checkpoint":
+          checkpointGames = Integer.parseInt(CommandLine.value(args, i, USAGE));
+          break;
+        case "--seed":
+          seed = Long.parseLong(CommandLine.value(args, i, USAGE));
+          break;
+        default:
+          throw CommandLine.usageError("Unknown option: " + args[i], USAGE);
+      }
+    }
+    if (out == null) {
+      throw CommandLine.usageError("Missing option: --out", USAGE);
+    }
+
+    NTupleNetwork network = resume != null
+            ? NTupleNetwork.load(resume).copyToHeap()
+            : NTupleNetwork.create(NTupleNetwork.DEFAULT_TUPLES);
+    System.out.println("Games: " + numGames + " Threads: " + numThreads + " Seed: " + seed + " Out: " + out
+            + " Resumed from: " + resume);
+
+    new NTupleTrainer(network).train(numGames, max(1, numThreads), seed, checkpointGames, out);
+  }
+
+  /**
+   * Plays the given number of games on as many threads, saving the weights to the file every checkpointGames games
+   * and once all are done. Game i spawns its numbers from stream i of the seed.
+   */
+  public void train(int numGames, int numThreads, long seed, int checkpointGames, Path out)
+          throws IOException, InterruptedException {
+
+    AtomicInteger nextGame = new AtomicInteger();
+    AtomicBoolean stopped = new AtomicBoolean();
+    ExecutorService gamePool = Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> workers = new ArrayList<>();
+    try {
+      for (int t = 0; t < numThreads; t++) {
+        workers.add(gamePool.submit(() -> {
+          for (int i = nextGame.getAndIncrement(); i < numGames && !stopped.get(); i = nextGame.getAndIncrement()) {
+            playGame(new GameModel(BitBoard.SIZE, SplitMix64.seedOfStream(seed, i)));
+          }
+        }));
+      }
+      gamePool.shutdown();
+
+      long startNanos = System.nanoTime();
+      long lastReportNanos = startNanos;
+      int lastReportGames = 0;
+      long lastReportScore = 0;
+      int nextCheckpoint = checkpointGames;
+      while (!gamePool.awaitTermination(REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        // Totals are read before the game count, so the averages are at worst a little low
+        long score = totalScore.get();
+        int games = gamesPlayed.get();
+        long now = System.nanoTime();
+        int intervalGames = games - lastReportGames;
+        System.out.println(String.format("Games: %d Games/sec: %.1f Avg Score: %.0f Moves/sec: %.0f",
+                games, intervalGames / ((now - lastReportNanos) / 1e9),
+                (score - lastReportScore) / (double) max(1, intervalGames),
+                movesPlayed.get() / ((now - startNanos) / 1e9)));
+        lastReportNanos = now;
+        lastReportGames = games;
+        lastReportScore = score;
+
+        if (checkpointGames > 0 && games >= nextCheckpoint) {
+          checkpoint(out);
+          System.out.println("Checkpoint after " + games + " games: " + out);
+          nextCheckpoint = games - games % checkpointGames + checkpointGames;
+        }
+      }
+      // Rethrows anything a game threw
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Training game failed", e.getCause());
+    } finally {
+      // If a game or a checkpoint failed, the other games stop once they are over
+      stopped.set(true);
+      gamePool.shutdown();
+      gamePool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    checkpoint(out);
+    System.out.println(String.format("Trained on %d games, %d moves. Saved: %s", gamesPlayed.get(), movesPlayed.get(),
+            out));
+  }
+
+  /**
+   * Plays one game on the given 4x4 model to the end, learning from every move.
+   */
+  void playGame(GameModel model) {
+
+    model.addNumber();
+    model.addNumber();
+
+    GameModel candidate = new GameModel(BitBoard.SIZE);
+    long previousAfterstate = 0;
+    boolean hasPrevious = false;
+    int spawnReward = 0;
+    int numMoves = 0;
+    while (true) {
+      Direction bestMove = null;
+      long bestAfterstate = 0;
+      float bestValue = Float.NEGATIVE_INFINITY;
+      for (Direction direction : Direction.VALUES) {
+        model.copyInto(candidate);
+        if (!candidate.executeMove(direction)) {
+          continue;
+        }
+        // Moves don't change the score, so the afterstate's value is all there is to compare
+        long afterstate = candidate.getBitBoard();
+        float value = network.evaluate(afterstate);
+        if (value > bestValue) {
+          bestMove = direction;
+          bestAfterstate = afterstate;
+          bestValue = value;
+        }
+      }
+
+      // The previous afterstate was worth the spawn after it, plus whatever the best move makes of that
+      if (hasPrevious) {
+        float target = spawnReward + (bestMove != null ? bestValue : 0);
+        network.update(previousAfterstate, LEARNING_RATE * (target - network.evaluate(previousAfterstate)));
+      }
+      if (bestMove == null) {
+        break;
+      }
+
+      model.executeMove(bestMove);
+      previousAfterstate = bestAfterstate;
+      hasPrevious = true;
+      int scoreBeforeSpawn = model.getScore();
+      model.addNumber();
+      spawnReward = model.getScore() - scoreBeforeSpawn;
+      numMoves++;
+    }
+
+    movesPlayed.addAndGet(numMoves);
+    totalScore.addAndGet(model.getScore());
+    gamesPlayed.incrementAndGet();
+  }
+
+  /**
+   * Saves the weights as they are, to a temporary file that then replaces the weight file in one step.
+   */
+  private void checkpoint(Path out) throws IOException {
+    Path temporary = out.resolveSibling(out.getFileName() + ".tmp");
+    network.save(temporary);
+    Files.move(temporary, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
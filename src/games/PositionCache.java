@@ -0,0 +1,437 @@
+package games;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A cache of decisions on 4x4 positions that is kept in a file, so that it survives from one run to the next. Each
+ * position maps to the move chosen on it, that move's score, and the number of simulations behind the decision.
+ * A cache file belongs to the bot named when it was created, and can't be opened for another one, so that a bot only
+ * ever plays its own decisions.
+ *
+ * The file is memory mapped, so the cache takes no heap however large it grows, and what a run has stored is in the
+ * file as soon as the run ends. A cache file can only be open once at a time.
+ *
+ * Positions are stored in their {@link Symmetry canonical form}, so mirror images share an entry. Entries are kept
+ * like those of a {@link TranspositionTable}: lock free, with the key XORed with the data so that a torn entry reads
+ * as a miss. The table starts small and doubles, by remapping the file, whenever it gets half full, up to the
+ * maximum size. From then on, a new entry evicts the entry in its bucket with the fewest simulations, breaking ties
+ * by evicting the later position. Openings, which are reached most often, are kept longest.
+ *
+ * File layout, all numbers little endian, in a header of 256 bytes followed by the buckets:
+ * <pre>
+ *   int magic ("PCAC"), int version, int log2 of the number of buckets, int length of the bot name,
+ *   long number of entries, the bot name in UTF-8
+ *   buckets of 4 entries, each entry a long key XORed with the data, and a long data word
+ * </pre>
+ */
+public class PositionCache implements AutoCloseable {
+
+  /**
+   * Default maximum file size, in bytes.
+   */
+  public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+  private static final int MAGIC = 0x43414350; // "PCAC" read as a little endian int
+
+  private static final int VERSION = 2;
+
+  private static final int HEADER_BYTES = 256;
+
+  private static final int BOT_NAME_OFFSET = 24;
+
+  private static final int MAX_BOT_NAME_BYTES = HEADER_BYTES - BOT_NAME_OFFSET;
+
+  private static final int ENTRIES_PER_BUCKET = 4;
+
+  private static final int BYTES_PER_ENTRY = 16;
+
+  private static final int BYTES_PER_BUCKET = ENTRIES_PER_BUCKET * BYTES_PER_ENTRY;
+
+  private static final int INITIAL_LOG2_BUCKETS = 12;
+
+  // A single mapping can't exceed 2GB
+  private static final long MAX_TABLE_BYTES = 1L << 30;
+
+  private static final long MAX_SAMPLES = 0xFFFFFF;
+
+  /*
+   * Layout of a data word, which is never zero for a used entry:
+   * bits 0-31: score of the move, as float bits
+   * bits 32-55: number of simulations, saturating
+   * bits 56-63: move ordinal + 1, on the canonical form
+   */
+
+  private final FileChannel channel;
+
+  // Keeps other processes from opening the file while this one has it
+  private final FileLock fileLock;
+
+  private final String botName;
+
+  private final int maxLog2Buckets;
+
+  // Probes and stores share the read lock. Only growing the table, which remaps it, takes the write lock.
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private MappedByteBuffer buffer;
+
+  private int log2Buckets;
+
+  private final AtomicLong numEntries = new AtomicLong();
+
+  private final LongAdder probes = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+
+  private boolean closed;
+
+  private PositionCache(FileChannel channel, FileLock fileLock, String botName, long maxBytes) {
+    this.channel = channel;
+    this.fileLock = fileLock;
+    this.botName = botName;
+    long maxBuckets = Math.max(1, Math.min(maxBytes - HEADER_BYTES, MAX_TABLE_BYTES) / BYTES_PER_BUCKET);
+    this.maxLog2Buckets = Math.max(INITIAL_LOG2_BUCKETS, 63 - Long.numberOfLeadingZeros(maxBuckets));
+  }
+
+  /**
+   * Opens the given bot's cache in the given file, creating it if it doesn't exist, with the default maximum size.
+   */
+  public static PositionCache open(Path path, String botName) throws IOException {
+    return open(path, botName, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Opens the given bot's cache in the given file, creating it if it doesn't exist. The file grows to at most the given
+   * number of bytes, rounded down to a power of two number of buckets, unless it is already larger.
+   *
+   * @param botName names the bot, and whatever else decides its moves, in at most 232 bytes of UTF-8.
+   * @throws IOException if the file can't be opened, isn't a cache file, belongs to another bot, or is open already,
+   *                     in this process or another.
+   */
+  public static PositionCache open(Path path, String botName, long maxBytes) throws IOException {
+
+    if (botName.getBytes(StandardCharsets.UTF_8).length > MAX_BOT_NAME_BYTES) {
+      throw new IllegalArgumentException("Bot name too long for a position cache: " + botName);
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try {
+      FileLock fileLock;
+      try {
+        fileLock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        fileLock = null;
+      }
+      if (fileLock == null) {
+        throw new IOException("Position cache is open already: " + path);
+      }
+      PositionCache cache = new PositionCache(channel, fileLock, botName, maxBytes);
+      if (channel.size() == 0) {
+        cache.log2Buckets = INITIAL_LOG2_BUCKETS;
+        cache.map();
+        cache.writeHeader();
+      } else {
+        cache.readHeader(path);
+      }
+      return cache;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the data word stored for the position, with its move mapped onto the position, if it is backed by at
+   * least the given number of simulations and its move is valid on the position. Returns zero if there is none, or the
+   * grid isn't 4x4.
+   * Use {@link #getValue}, {@link #getMove} and {@link #getSamples} to read it.
+   */
+  public long probe(GameModel position, long minSamples) {
+
+    if (position.getGridSize() != BitBoard.SIZE) {
+      return 0;
+    }
+    long board = position.getBitBoard();
+    Symmetry symmetry = Symmetry.canonicalOf(board);
+    long key = symmetry.apply(board);
+    long entry = 0;
+    lock.readLock().lock();
+    try {
+      if (closed) {
+        return 0;
+      }
+      probes.increment();
+      int bucket = bucketOf(key);
+      for (int i = 0; i < ENTRIES_PER_BUCKET; i++) {
+        int offset = offsetOf(bucket, i);
+        long data = buffer.getLong(offset + 8);
+        if (data != 0 && (buffer.getLong(offset) ^ data) == key) {
+          entry = data;
+          break;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (entry == 0 || getSamples(entry) < minSamples) {
+      return 0;
+    }
+    Direction move = symmetry.inverse().apply(Direction.VALUES[getMove(entry)]);
+    if ((position.getValidMoveMask() & 1 << move.ordinal()) == 0) {
+      return 0;
+    }
+    hits.increment();
+    return withMove(entry, move);
+  }
+
+  /**
+   * Stores the decision on the position, unless the grid isn't 4x4, the decision's move isn't valid on the position,
+   * or the position has a decision backed by more simulations already.
+   */
+  public void store(GameModel position, MoveDecision decision) {
+
+    Direction direction = decision.getDirection();
+    if (position.getGridSize() != BitBoard.SIZE || direction == null
+            || (position.getValidMoveMask() & 1 << direction.ordinal()) == 0) {
+      return;
+    }
+    long board = position.getBitBoard();
+    Symmetry symmetry = Symmetry.canonicalOf(board);
+    long key = symmetry.apply(board);
+    long samples = Math.min(decision.getTotalSimulations(), MAX_SAMPLES);
+    long entry = withMove(Float.floatToRawIntBits(decision.getScore(direction)) & 0xFFFFFFFFL | samples << 32,
+            symmetry.apply(direction));
+
+    boolean added;
+    lock.readLock().lock();
+    try {
+      added = !closed && storeEntry(key, entry);
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (added && numEntries.incrementAndGet() > (long) ENTRIES_PER_BUCKET << log2Buckets >>> 1
+            && log2Buckets < maxLog2Buckets) {
+      grow();
+    }
+  }
+
+  public static float getValue(long entry) {
+    return Float.intBitsToFloat((int) entry);
+  }
+
+  public static long getSamples(long entry) {
+    return entry >>> 32 & MAX_SAMPLES;
+  }
+
+  /**
+   * Returns the ordinal of the stored move.
+   */
+  public static int getMove(long entry) {
+    return (int) (entry >>> 56) - 1;
+  }
+
+  public long getNumEntries() {
+    return numEntries.get();
+  }
+
+  /**
+   * Returns the number of bytes of the file.
+   */
+  public long getSizeBytes() {
+    return HEADER_BYTES + ((long) BYTES_PER_BUCKET << log2Buckets);
+  }
+
+  public long getProbes() {
+    return probes.sum();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Writes the cache out to the file and closes it. From then on probes miss and stores are dropped, so that bots still
+   * searching when the process shuts down finish undisturbed.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      writeHeader();
+      buffer.force();
+      fileLock.release();
+      channel.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Entries: " + getNumEntries() + " Size: " + (getSizeBytes() >> 10) + "KB Probes: " + getProbes()
+            + " Hits: " + getHits();
+  }
+
+  /**
+   * Writes the entry into a free slot of the key's bucket, its own slot, or the slot of the entry it evicts.
+   *
+   * @return true if the entry took a free slot.
+   */
+  private boolean storeEntry(long key, long entry) {
+
+    int bucket = bucketOf(key);
+    int victim = -1;
+    for (int i = 0; i < ENTRIES_PER_BUCKET; i++) {
+      int offset = offsetOf(bucket, i);
+      long data = buffer.getLong(offset + 8);
+      long existingKey = buffer.getLong(offset) ^ data;
+      if (data == 0 || existingKey == key) {
+        if (data != 0 && getSamples(data) > getSamples(entry)) {
+          return false;
+        }
+        writeEntry(offset, key, entry);
+        return data == 0;
+      }
+      if (victim < 0 || isWorseThan(existingKey, data, victim)) {
+        victim = offset;
+      }
+    }
+    if (!isWorseThan(key, entry, victim)) {
+      writeEntry(victim, key, entry);
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether an entry should be evicted before the one at the given offset: it has fewer simulations, or as
+   * many on a later position.
+   */
+  private boolean isWorseThan(long key, long data, int offset) {
+    long otherData = buffer.getLong(offset + 8);
+    long otherKey = buffer.getLong(offset) ^ otherData;
+    if (getSamples(data) != getSamples(otherData)) {
+      return getSamples(data) < getSamples(otherData);
+    }
+    return BitBoard.getCellSum(key) > BitBoard.getCellSum(otherKey);
+  }
+
+  private void writeEntry(int offset, long key, long entry) {
+    buffer.putLong(offset + 8, entry);
+    buffer.putLong(offset, key ^ entry);
+  }
+
+  /**
+   * Doubles the number of buckets. The key of an entry in bucket b then picks either bucket b or b + the old number of
+   * buckets, so entries move to the upper half at the same place within their bucket, or stay.
+   */
+  private void grow() {
+    lock.writeLock().lock();
+    try {
+      if (closed || numEntries.get() <= (long) ENTRIES_PER_BUCKET << log2Buckets >>> 1) {
+        return;
+      }
+      int oldBuckets = 1 << log2Buckets;
+      log2Buckets++;
+      map();
+      for (int bucket = 0; bucket < oldBuckets; bucket++) {
+        for (int i = 0; i < ENTRIES_PER_BUCKET; i++) {
+          int offset = offsetOf(bucket, i);
+          long data = buffer.getLong(offset + 8);
+          if (data == 0) {
+            continue;
+          }
+          long key = buffer.getLong(offset) ^ data;
+          if (bucketOf(key) != bucket) {
+            writeEntry(offsetOf(bucket + oldBuckets, i), key, data);
+            writeEntry(offset, 0, 0);
+          }
+        }
+      }
+      writeHeader();
+    } catch (IOException e) {
+      // The old mapping is still in place, so the cache keeps working at its current size
+      log2Buckets--;
+      System.err.println("Could not grow the position cache: " + e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Maps the header and the current number of buckets, extending the file with empty buckets as needed.
+   */
+  private void map() throws IOException {
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getSizeBytes());
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void writeHeader() {
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(8, log2Buckets);
+    byte[] botNameBytes = botName.getBytes(StandardCharsets.UTF_8);
+    buffer.putInt(12, botNameBytes.length);
+    buffer.putLong(16, numEntries.get());
+    for (int i = 0; i < botNameBytes.length; i++) {
+      buffer.put(BOT_NAME_OFFSET + i, botNameBytes[i]);
+    }
+  }
+
+  private void readHeader(Path path) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        throw new IOException("Truncated position cache: " + path);
+      }
+    }
+    if (header.getInt(0) != MAGIC) {
+      throw new IOException("Not a position cache: " + path);
+    }
+    if (header.getInt(4) != VERSION) {
+      throw new IOException("Position cache of an unsupported version: " + path);
+    }
+    int botNameLength = header.getInt(12);
+    if (botNameLength < 0 || botNameLength > MAX_BOT_NAME_BYTES) {
+      throw new IOException("Corrupt position cache: " + path);
+    }
+    String fileBotName = new String(header.array(), BOT_NAME_OFFSET, botNameLength, StandardCharsets.UTF_8);
+    if (!fileBotName.equals(botName)) {
+      throw new IOException("Position cache of bot " + fileBotName + ", not " + botName + ": " + path);
+    }
+    log2Buckets = header.getInt(8);
+    if (log2Buckets < INITIAL_LOG2_BUCKETS || (long) BYTES_PER_BUCKET << log2Buckets > MAX_TABLE_BYTES
+            || channel.size() < getSizeBytes()) {
+      throw new IOException("Corrupt position cache: " + path);
+    }
+    numEntries.set(header.getLong(16));
+    map();
+  }
+
+  private int bucketOf(long key) {
+    return (int) SplitMix64.mix(key) & ((1 << log2Buckets) - 1);
+  }
+
+  private static int offsetOf(int bucket, int entryIndex) {
+    return HEADER_BYTES + bucket * BYTES_PER_BUCKET + entryIndex * BYTES_PER_ENTRY;
+  }
+
+  private static long withMove(long entry, Direction move) {
+    return entry & ~(0xFFL << 56) | (long) (move.ordinal() + 1) << 56;
+  }
+}
@@ -1,15 +1,31 @@
 package games;
 
-import java.util.concurrent.ThreadLocalRandom;
-
 /**
  * A very basic bot that chooses a direction to move randomly.
  */
 public class RandomBot implements Bot {
 
+  // Draws the moves, or null to draw them from the model's own source
+  private final RandomSource random;
+
+  /**
+   * Creates a bot that draws its moves from the random source of the model it is given, so that a seeded simulation
+   * is reproducible as a whole.
+   */
+  public RandomBot() {
+    this(null);
+  }
+
+  /**
+   * Creates a bot that draws its moves from the given source. The bot is then only safe to use from one thread.
+   */
+  public RandomBot(RandomSource random) {
+    this.random = random;
+  }
+
   @Override
   public Direction getNextMove(GameModel model) {
-    ThreadLocalRandom rng = ThreadLocalRandom.current();
-    return Direction.values()[rng.nextInt(4)];
+    RandomSource rng = random != null ? random : model.getRandomSource();
+    return Direction.VALUES[rng.nextInt(Direction.VALUES.length)];
   }
 }
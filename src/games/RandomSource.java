@@ -0,0 +1,54 @@
+package games;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A source of random numbers for spawning numbers and for rollout policies.
+ *
+ * Implementations need not be thread safe, except for {@link #threadLocal()}.
+ */
+public interface RandomSource {
+
+  /**
+   * Returns 64 uniformly distributed random bits.
+   */
+  long nextLong();
+
+  /**
+   * Returns a uniformly distributed int in [0, bound), for a positive bound.
+   */
+  default int nextInt(int bound) {
+    return boundedInt(nextLong() >>> 32, bound);
+  }
+
+  /**
+   * Maps 32 random bits onto [0, bound) with a multiplication instead of a division. The result is biased by at most
+   * bound / 2^32, which is negligible for board sized bounds.
+   */
+  static int boundedInt(long bits32, int bound) {
+    return (int) ((bits32 * bound) >>> 32);
+  }
+
+  /**
+   * Returns a source that draws from the calling thread's {@link ThreadLocalRandom}, and so can't be seeded.
+   */
+  static RandomSource threadLocal() {
+    return ThreadLocalSource.INSTANCE;
+  }
+
+  /**
+   * The unseeded source shared by all threads.
+   */
+  final class ThreadLocalSource implements RandomSource {
+
+    private static final ThreadLocalSource INSTANCE = new ThreadLocalSource();
+
+    private ThreadLocalSource() {
+    }
+
+    @Override
+    public long nextLong() {
+      return ThreadLocalRandom.current().nextLong();
+    }
+  }
+}
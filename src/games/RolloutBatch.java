@@ -0,0 +1,175 @@
+package games;
+
+import java.util.function.LongToDoubleFunction;
+
+/**
+ * Plays a batch of random rollouts from the same 4x4 board in lockstep, as an allocation free stand-in for running a
+ * random core bot on a {@link GameModel} one rollout at a time.
+ *
+ * The batch is laid out as a structure of arrays: one packed {@link BitBoard} per rollout, and the indices of the
+ * rollouts still in play, compacted after every step. Each step is a tight loop over primitive arrays without any
+ * virtual calls, and finished rollouts drop out of it instead of being checked again. The final boards are scored in
+ * a separate pass, which a {@link BoardKernel} can run on SIMD lanes when the batch scores them the way
+ * {@link MonteCarloBot#computeScore(long)} does.
+ *
+ * A batch is not thread safe, and reuses its arrays from one run to the next.
+ */
+final class RolloutBatch {
+
+  /**
+   * The core bots a batch can stand in for.
+   */
+  enum Policy {
+    // Any direction, like RandomBot
+    RANDOM,
+    // Only directions that change the board, like LegalRandomBot
+    LEGAL_RANDOM,
+  }
+
+  private final Policy policy;
+
+  private final int maxMoves;
+
+  // Scores the final boards, or null if the kernel does
+  private final LongToDoubleFunction evaluator;
+
+  private final BoardKernel kernel;
+
+  private long[] boards = new long[0];
+
+  private int[] liveRollouts = new int[0];
+
+  private float[] scores = new float[0];
+
+  // Filled in by the kernel
+  private int[] cellSums = new int[0];
+
+  private int[] numEmptyCells = new int[0];
+
+  /**
+   * @param maxMoves  cut rollouts short after this many moves.
+   * @param evaluator scores the packed boards that rollouts end on.
+   */
+  RolloutBatch(Policy policy, int maxMoves, LongToDoubleFunction evaluator) {
+    this(policy, maxMoves, evaluator, null);
+  }
+
+  /**
+   * Creates a batch that scores the boards rollouts end on like {@link MonteCarloBot#computeScore(long)}, using the
+   * given kernel.
+   *
+   * @param maxMoves cut rollouts short after this many moves.
+   */
+  RolloutBatch(Policy policy, int maxMoves, BoardKernel kernel) {
+    this(policy, maxMoves, null, kernel);
+  }
+
+  private RolloutBatch(Policy policy, int maxMoves, LongToDoubleFunction evaluator, BoardKernel kernel) {
+    this.policy = policy;
+    this.maxMoves = maxMoves;
+    this.evaluator = evaluator;
+    this.kernel = kernel;
+  }
+
+  /**
+   * Returns the policy that plays the same as the given core bot, or null if there is none.
+   */
+  static Policy policyOf(Bot coreBot) {
+    if (coreBot.getClass() == RandomBot.class) {
+      return Policy.RANDOM;
+    }
+    if (coreBot.getClass() == LegalRandomBot.class) {
+      return Policy.LEGAL_RANDOM;
+    }
+    return null;
+  }
+
+  /**
+   * Plays the given number of rollouts from the board, each starting with a spawned number, and returns their scores
+   * by rollout. All moves and spawns are drawn from the given source. The returned array is overwritten by the next
+   * run, and may be longer than the number of rollouts.
+   */
+  float[] run(long startBoard, int numRollouts, RandomSource random) {
+
+    if (boards.length < numRollouts) {
+      boards = new long[numRollouts];
+      liveRollouts = new int[numRollouts];
+      scores = new float[numRollouts];
+    }
+
+    for (int i = 0; i < numRollouts; i++) {
+      boards[i] = spawn(startBoard, random.nextLong());
+      liveRollouts[i] = i;
+    }
+
+    int numLive = numRollouts;
+    long numMoves = 0;
+    long numIllegalMoves = 0;
+    for (int step = 0; step < maxMoves && numLive > 0; step++) {
+      int numStillLive = 0;
+      for (int i = 0; i < numLive; i++) {
+        int rollout = liveRollouts[i];
+        long board = boards[rollout];
+        // The spawn leaves bits 24 to 31 of its draw unused, which is just enough to pick a random direction
+        long bits = random.nextLong();
+        long movedBoard = policy == Policy.RANDOM
+                ? BitBoard.move(board, Direction.VALUES[(int) (bits >>> 24) & 3]) : moveLegally(board, random);
+        // Only a move that changed nothing needs the full check, to tell a wasted step from the end of the game
+        if (movedBoard == board) {
+          if (!BitBoard.hasValidMove(board)) {
+            continue;
+          }
+          numIllegalMoves++;
+        }
+        boards[rollout] = spawn(movedBoard, bits);
+        liveRollouts[numStillLive++] = rollout;
+      }
+      numLive = numStillLive;
+      numMoves += numLive;
+    }
+    if (Metrics.ENABLED) {
+      // Rollouts still live after the last step were cut short
+      Metrics.recordRollouts(numRollouts, numMoves, numIllegalMoves, numLive);
+    }
+
+    if (evaluator != null) {
+      for (int i = 0; i < numRollouts; i++) {
+        scores[i] = (float) evaluator.applyAsDouble(boards[i]);
+      }
+    } else {
+      if (cellSums.length < numRollouts) {
+        cellSums = new int[numRollouts];
+        numEmptyCells = new int[numRollouts];
+      }
+      kernel.sumCells(boards, numRollouts, cellSums, numEmptyCells);
+      for (int i = 0; i < numRollouts; i++) {
+        scores[i] = MonteCarloBot.computeScore(cellSums[i], numEmptyCells[i]);
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Moves in a random valid direction, or returns the board as it is if there is none.
+   */
+  private static long moveLegally(long board, RandomSource random) {
+    int validMoves = BitBoard.validMoveMask(board);
+    if (validMoves == 0) {
+      return board;
+    }
+    for (int i = random.nextInt(Integer.bitCount(validMoves)); i > 0; i--) {
+      validMoves &= validMoves - 1;
+    }
+    return BitBoard.move(board, Direction.VALUES[Integer.numberOfTrailingZeros(validMoves)]);
+  }
+
+  /**
+   * Adds a new number to the board according to the game rules, the same way {@link GameModel#addNumber()} does.
+   */
+  private static long spawn(long board, long bits) {
+    if (BitBoard.emptyCellMask(board) == 0) {
+      return board;
+    }
+    return BitBoard.setRandomEmptyCell(board, bits >>> 32, GameModel.NumberPlacer.numberToAdd(bits));
+  }
+}
@@ -0,0 +1,94 @@
+package games;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Math.min;
+
+/**
+ * A bounded pool of threads that bots run their searches on. Any number of bots can share one executor, and together
+ * they never use more threads than it has.
+ *
+ * Each search also says how many threads it may use at most, so that bots sharing an executor can be given their own
+ * share of the cores. The threads are daemon threads, so an executor that is never closed won't keep the JVM alive.
+ */
+public class SearchExecutor implements AutoCloseable {
+
+  private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+
+  private final ForkJoinPool pool;
+
+  /**
+   * Creates an executor with the given number of threads, which should be closed once no bot needs it any more.
+   */
+  public SearchExecutor(int numThreads) {
+    this.pool = new ForkJoinPool(numThreads);
+  }
+
+  /**
+   * Returns the executor that bots use unless they are given another, with a thread per core. It lives as long as the
+   * process, and can't be closed.
+   */
+  public static SearchExecutor shared() {
+    return Shared.INSTANCE;
+  }
+
+  public int getNumThreads() {
+    return pool.getParallelism();
+  }
+
+  /**
+   * Runs the tasks on at most maxParallelism threads at once, and returns once all of them have finished.
+   * Each thread keeps taking the next task that hasn't been started, so tasks of uneven length even out.
+   *
+   * @throws java.util.concurrent.RejectedExecutionException if the executor has been closed.
+   */
+  public void runAll(List<? extends Runnable> tasks, int maxParallelism) {
+
+    if (Metrics.ENABLED) {
+      Metrics.searchTasksQueued(tasks.size());
+    }
+    AtomicInteger nextTask = new AtomicInteger();
+    List<ForkJoinTask<?>> workers = new ArrayList<>();
+    for (int i = 0; i < min(maxParallelism, tasks.size()); i++) {
+      workers.add(ForkJoinTask.adapt(() -> {
+        for (int task = nextTask.getAndIncrement(); task < tasks.size(); task = nextTask.getAndIncrement()) {
+          if (Metrics.ENABLED) {
+            Metrics.searchTaskStarted();
+          }
+          tasks.get(task).run();
+        }
+      }));
+    }
+    pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(workers)));
+  }
+
+  /**
+   * Stops accepting searches, and waits for the ones that are running to finish. If interrupted while waiting, returns
+   * early with the interrupt status set.
+   */
+  @Override
+  public void close() {
+    if (this == Shared.INSTANCE) {
+      throw new IllegalStateException("The shared executor can't be closed");
+    }
+    pool.shutdown();
+    try {
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Holds the shared executor, so that it is only created once a bot needs it.
+   */
+  private static class Shared {
+
+    private static final SearchExecutor INSTANCE = new SearchExecutor(NUM_CORES);
+  }
+}
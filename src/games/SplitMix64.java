@@ -0,0 +1,47 @@
+package games;
+
+/**
+ * A small, fast and seedable {@link RandomSource}, see http://prng.di.unimi.it/splitmix64.c
+ *
+ * Independent streams for parallel work are made with {@link #split()}, or by seeding with {@link #seedOfStream} of a
+ * common seed and a stream number. Not thread safe: each thread should have its own instance.
+ */
+public class SplitMix64 implements RandomSource {
+
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private long state;
+
+  public SplitMix64(long seed) {
+    this.state = seed;
+  }
+
+  @Override
+  public long nextLong() {
+    state += GOLDEN_GAMMA;
+    return mix(state);
+  }
+
+  /**
+   * Returns a new generator whose stream is independent of this one's.
+   */
+  public SplitMix64 split() {
+    return new SplitMix64(nextLong());
+  }
+
+  /**
+   * Returns the seed of stream number n derived from the given seed.
+   */
+  public static long seedOfStream(long seed, long n) {
+    return mix(seed + GOLDEN_GAMMA * (n + 1));
+  }
+
+  /**
+   * Scrambles the bits of the input, so that nearby inputs give unrelated outputs.
+   */
+  public static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,218 @@
+package games;
+
+/**
+ * The 8 rotations and reflections of a square grid. Boards that are mirror images of each other are equally good, and
+ * the moves that are best on them are mirror images too, so a result found for one serves all 8.
+ *
+ * Each symmetry moves the cell at column x and row y of a grid of the given size to the position noted below.
+ * Rotations are clockwise, with row 0 at the top.
+ */
+public enum Symmetry {
+  // (x, y)
+  IDENTITY,
+  // (size - 1 - y, x)
+  ROTATE_90,
+  // (size - 1 - x, size - 1 - y)
+  ROTATE_180,
+  // (y, size - 1 - x)
+  ROTATE_270,
+  // (size - 1 - x, y)
+  FLIP_HORIZONTAL,
+  // (x, size - 1 - y)
+  FLIP_VERTICAL,
+  // (y, x)
+  TRANSPOSE,
+  // (size - 1 - y, size - 1 - x)
+  ANTI_TRANSPOSE;
+
+  public static final Symmetry[] VALUES = values();
+
+  // The direction each direction becomes, by symmetry and direction ordinal
+  private static final Direction[][] directions = new Direction[VALUES.length][];
+
+  static {
+    int[][] vectors = new int[Direction.VALUES.length][];
+    vectors[Direction.UP.ordinal()] = new int[]{0, -1};
+    vectors[Direction.DOWN.ordinal()] = new int[]{0, 1};
+    vectors[Direction.LEFT.ordinal()] = new int[]{-1, 0};
+    vectors[Direction.RIGHT.ordinal()] = new int[]{1, 0};
+
+    // A direction becomes the one between where a cell and its neighbour in that direction end up
+    int size = 3;
+    for (Symmetry symmetry : VALUES) {
+      directions[symmetry.ordinal()] = new Direction[Direction.VALUES.length];
+      int center = symmetry.mapCell(1 + size, size);
+      for (Direction direction : Direction.VALUES) {
+        int[] vector = vectors[direction.ordinal()];
+        int neighbour = symmetry.mapCell(1 + vector[0] + (1 + vector[1]) * size, size);
+        for (Direction mapped : Direction.VALUES) {
+          int[] mappedVector = vectors[mapped.ordinal()];
+          if (neighbour - center == mappedVector[0] + mappedVector[1] * size) {
+            directions[symmetry.ordinal()][direction.ordinal()] = mapped;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the symmetry that undoes this one.
+   */
+  public Symmetry inverse() {
+    switch (this) {
+      case ROTATE_90:
+        return ROTATE_270;
+      case ROTATE_270:
+        return ROTATE_90;
+      default:
+        return this;
+    }
+  }
+
+  /**
+   * Returns the move on the transformed board that does what the given move does on the original board.
+   */
+  public Direction apply(Direction direction) {
+    return directions[ordinal()][direction.ordinal()];
+  }
+
+  /**
+   * Returns the index the cell with the given index moves to, on a grid of the given size.
+   */
+  public int mapCell(int cellIndex, int gridSize) {
+    int x = cellIndex % gridSize;
+    int y = cellIndex / gridSize;
+    int last = gridSize - 1;
+    switch (this) {
+      case ROTATE_90:
+        return x * gridSize + last - y;
+      case ROTATE_180:
+        return (last - y) * gridSize + last - x;
+      case ROTATE_270:
+        return (last - x) * gridSize + y;
+      case FLIP_HORIZONTAL:
+        return y * gridSize + last - x;
+      case FLIP_VERTICAL:
+        return (last - y) * gridSize + x;
+      case TRANSPOSE:
+        return x * gridSize + y;
+      case ANTI_TRANSPOSE:
+        return (last - x) * gridSize + last - y;
+      default:
+        return cellIndex;
+    }
+  }
+
+  /**
+   * Returns a transformed copy of a grid of the given size.
+   */
+  public byte[] apply(byte[] grid, int gridSize) {
+    byte[] transformed = new byte[grid.length];
+    for (int i = 0; i < grid.length; i++) {
+      transformed[mapCell(i, gridSize)] = grid[i];
+    }
+    return transformed;
+  }
+
+  /**
+   * Returns a transformed packed 4x4 board (see {@link BitBoard}).
+   */
+  long apply(long board) {
+    switch (this) {
+      case ROTATE_90:
+        return flipHorizontal(BitBoard.transpose(board));
+      case ROTATE_180:
+        return flipVertical(flipHorizontal(board));
+      case ROTATE_270:
+        return flipVertical(BitBoard.transpose(board));
+      case FLIP_HORIZONTAL:
+        return flipHorizontal(board);
+      case FLIP_VERTICAL:
+        return flipVertical(board);
+      case TRANSPOSE:
+        return BitBoard.transpose(board);
+      case ANTI_TRANSPOSE:
+        return flipVertical(flipHorizontal(BitBoard.transpose(board)));
+      default:
+        return board;
+    }
+  }
+
+  /**
+   * Returns the canonical form of a packed 4x4 board: the smallest of its 8 images, which all its images share.
+   */
+  static long canonicalize(long board) {
+    long horizontal = flipHorizontal(board);
+    long transposed = BitBoard.transpose(board);
+    long rotated90 = flipHorizontal(transposed);
+    long canonical = min(board, horizontal);
+    canonical = min(canonical, flipVertical(board));
+    canonical = min(canonical, flipVertical(horizontal));
+    canonical = min(canonical, transposed);
+    canonical = min(canonical, rotated90);
+    canonical = min(canonical, flipVertical(transposed));
+    return min(canonical, flipVertical(rotated90));
+  }
+
+  /**
+   * Returns a symmetry that turns the packed 4x4 board into its {@link #canonicalize canonical form}.
+   */
+  static Symmetry canonicalOf(long board) {
+    long canonical = canonicalize(board);
+    for (Symmetry symmetry : VALUES) {
+      if (symmetry.apply(board) == canonical) {
+        return symmetry;
+      }
+    }
+    throw new AssertionError("No symmetry gives the canonical form");
+  }
+
+  /**
+   * Returns a symmetry that turns a grid of the given size into its canonical form: the image that comes first when
+   * comparing cells in index order.
+   */
+  public static Symmetry canonicalOf(byte[] grid, int gridSize) {
+    Symmetry best = IDENTITY;
+    for (Symmetry symmetry : VALUES) {
+      if (compare(grid, gridSize, symmetry, best) < 0) {
+        best = symmetry;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Compares the images of the grid under two symmetries cell by cell, without building either.
+   */
+  private static int compare(byte[] grid, int gridSize, Symmetry a, Symmetry b) {
+    Symmetry aInverse = a.inverse();
+    Symmetry bInverse = b.inverse();
+    for (int i = 0; i < grid.length; i++) {
+      int difference = grid[aInverse.mapCell(i, gridSize)] - grid[bInverse.mapCell(i, gridSize)];
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return 0;
+  }
+
+  // Mirrors the columns, reversing the cells within each row
+  private static long flipHorizontal(long board) {
+    return ((board & 0x000F000F000F000FL) << 12)
+            | ((board & 0x00F000F000F000F0L) << 4)
+            | ((board >>> 4) & 0x00F000F000F000F0L)
+            | ((board >>> 12) & 0x000F000F000F000FL);
+  }
+
+  // Mirrors the rows, reversing their order
+  private static long flipVertical(long board) {
+    return (board << 48)
+            | ((board & 0xFFFF0000L) << 16)
+            | ((board >>> 16) & 0xFFFF0000L)
+            | (board >>> 48);
+  }
+
+  private static long min(long a, long b) {
+    return a < b ? a : b;
+  }
+}
@@ -0,0 +1,268 @@
+package games;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Appends bot decisions on 4x4 positions to a file of training data: the board, the chosen move, and for each
+ * direction its mean score and the number of simulations behind it.
+ *
+ * Decisions are gathered into blocks, which a background thread writes out while the bots go on searching. At most a
+ * few blocks wait to be written; if the disk falls behind further than that, {@link #write} waits for it. Any number
+ * of threads can write to one writer.
+ *
+ * The file starts with the int magic "TDAT" and an int version, then holds blocks of up to {@value #BLOCK_RECORDS}
+ * decisions, all numbers little endian. Each block stores its decisions column by column:
+ * <pre>
+ *   int number of decisions n
+ *   long[n] packed boards (see {@link BitBoard})
+ *   byte[n] ordinals of the chosen moves, -1 for none
+ *   float[n] mean scores of UP, then float[n] of DOWN, LEFT and RIGHT each, negative infinity if not scored
+ *   int[n] numbers of simulations of UP, then int[n] of DOWN, LEFT and RIGHT each, saturating
+ * </pre>
+ * Decisions that a bot didn't score, like those of bots that don't simulate, have no simulations in any direction.
+ */
+public class TrainingDataWriter implements AutoCloseable {
+
+  static final int MAGIC = 0x54414454; // "TDAT" read as a little endian int
+
+  static final int VERSION = 1;
+
+  static final int BLOCK_RECORDS = 1 << 14;
+
+  private static final int MAX_QUEUED_BLOCKS = 4;
+
+  private static final int NUM_DIRECTIONS = Direction.VALUES.length;
+
+  // Tells the background thread to stop
+  private static final Block END = new Block(0);
+
+  private final FileChannel channel;
+
+  private final BlockingQueue<Block> queue = new ArrayBlockingQueue<>(MAX_QUEUED_BLOCKS);
+
+  private final Thread thread;
+
+  // The block being filled, guarded by this
+  private Block current = new Block(BLOCK_RECORDS);
+
+  private boolean closed;
+
+  // The first error the background thread ran into
+  private volatile IOException failure;
+
+  /**
+   * Opens the file for appending decisions, creating it if it doesn't exist, and starts the background thread. The
+   * file is locked until the writer is closed, so that two writers can't interleave their blocks.
+   *
+   * @throws IOException if the file can't be opened, isn't a training data file, or is open for writing already, in
+   *                     this process or another.
+   */
+  public TrainingDataWriter(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    try {
+      FileLock fileLock;
+      try {
+        fileLock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        fileLock = null;
+      }
+      if (fileLock == null) {
+        throw new IOException("Training data file is open for writing already: " + path);
+      }
+      ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      if (channel.size() == 0) {
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(header);
+      } else {
+        channel.read(header, 0);
+        if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+          throw new IOException("Not a training data file: " + path);
+        }
+        channel.position(channel.size());
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    thread = new Thread(this::run, "training-data-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Adds the decision on the position, unless the grid isn't 4x4.
+   *
+   * @throws IOException if an earlier block could not be written.
+   */
+  public void write(GameModel position, MoveDecision decision) throws IOException {
+
+    if (failure != null) {
+      throw failure;
+    }
+    if (position.getGridSize() != BitBoard.SIZE) {
+      return;
+    }
+    Block full = null;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("The training data writer is closed");
+      }
+      current.add(position.getBitBoard(), decision);
+      if (current.size == BLOCK_RECORDS) {
+        full = current;
+        current = new Block(BLOCK_RECORDS);
+      }
+    }
+    if (full != null) {
+      enqueue(full);
+    }
+  }
+
+  /**
+   * Writes out the decisions that are still buffered, and closes the file.
+   *
+   * @throws IOException if any block could not be written.
+   */
+  @Override
+  public void close() throws IOException {
+    Block last;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      last = current;
+    }
+    try {
+      if (last.size > 0) {
+        enqueue(last);
+      }
+      enqueue(END);
+      thread.join();
+    } catch (InterruptedIOException e) {
+      thread.interrupt();
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      channel.close();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void enqueue(Block block) throws InterruptedIOException {
+    try {
+      queue.put(block);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to write training data");
+    }
+  }
+
+  /**
+   * Writes blocks until told to stop. After a failure or an interrupt, keeps taking blocks without writing them, so
+   * that writers don't wait forever, until told to stop or, once the writer is closed, until no blocks are left.
+   */
+  private void run() {
+    while (true) {
+      Block block;
+      try {
+        block = failure != null && isClosed() ? queue.poll() : queue.take();
+      } catch (InterruptedException e) {
+        if (failure == null) {
+          failure = new InterruptedIOException("Training data writer interrupted");
+        }
+        continue;
+      }
+      if (block == null || block == END) {
+        return;
+      }
+      if (failure == null) {
+        try {
+          writeFully(block.encode());
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  private void writeFully(ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
+  /**
+   * The columns of a block of decisions.
+   */
+  private static class Block {
+
+    final long[] boards;
+
+    final byte[] moves;
+
+    // Indexed by direction ordinal, then decision
+    final float[][] scores;
+
+    final int[][] numSimulations;
+
+    int size;
+
+    Block(int capacity) {
+      boards = new long[capacity];
+      moves = new byte[capacity];
+      scores = new float[NUM_DIRECTIONS][capacity];
+      numSimulations = new int[NUM_DIRECTIONS][capacity];
+    }
+
+    void add(long board, MoveDecision decision) {
+      boards[size] = board;
+      moves[size] = (byte) (decision.getDirection() != null ? decision.getDirection().ordinal() : -1);
+      for (Direction direction : Direction.VALUES) {
+        scores[direction.ordinal()][size] = decision.getScore(direction);
+        numSimulations[direction.ordinal()][size] =
+                (int) Math.min(decision.getNumSimulations(direction), Integer.MAX_VALUE);
+      }
+      size++;
+    }
+
+    ByteBuffer encode() {
+      ByteBuffer bytes = ByteBuffer.allocate(4 + size * (8 + 1 + NUM_DIRECTIONS * (4 + 4)))
+              .order(ByteOrder.LITTLE_ENDIAN);
+      bytes.putInt(size);
+      for (int i = 0; i < size; i++) {
+        bytes.putLong(boards[i]);
+      }
+      bytes.put(moves, 0, size);
+      for (float[] directionScores : scores) {
+        for (int i = 0; i < size; i++) {
+          bytes.putFloat(directionScores[i]);
+        }
+      }
+      for (int[] directionSimulations : numSimulations) {
+        for (int i = 0; i < size; i++) {
+          bytes.putInt(directionSimulations[i]);
+        }
+      }
+      bytes.flip();
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package games;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size cache of search results keyed by packed 4x4 boards (see {@link BitBoard}).
+ *
+ * Entries live in two parallel long arrays, one holding the data and one holding the key XORed with the data.
+ * Threads read and write them without locks: a torn or racing write leaves an entry whose key no longer checks out,
+ * which simply reads as a miss. This makes one table safe to share between all threads of a bot.
+ *
+ * Different bots store different kinds of values, so a table should only be shared between bots of the same type.
+ */
+public class TranspositionTable {
+
+  /**
+   * Decides which entry to overwrite when a new result does not fit.
+   */
+  public enum ReplacementPolicy {
+    // Always overwrite, keeping the most recent results
+    ALWAYS,
+    // Keep the results of deeper searches, which were more expensive to compute
+    DEPTH_PREFERRED,
+  }
+
+  /**
+   * Value returned by {@link #getMove} when no move was stored.
+   */
+  public static final int NO_MOVE = -1;
+
+  /**
+   * Default memory budget, in bytes.
+   */
+  public static final long DEFAULT_MEMORY_BYTES = 16L << 20;
+
+  // Number of consecutive slots a key may occupy
+  private static final int PROBE_LENGTH = 4;
+
+  private static final int BYTES_PER_ENTRY = 16;
+
+  private static final int MAX_DEPTH = 0xFFFF - 1;
+
+  /*
+   * Layout of a data word:
+   * bits 0-31: value, as float bits
+   * bits 32-47: depth + 1, so that an unused slot (all zeros) never matches
+   * bits 48-55: best move ordinal + 1, or 0 for none
+   */
+  private final long[] data;
+  private final long[] checkedKeys;
+
+  private final int mask;
+
+  private final ReplacementPolicy replacementPolicy;
+
+  private final LongAdder probes = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder stores = new LongAdder();
+
+  public TranspositionTable() {
+    this(DEFAULT_MEMORY_BYTES, ReplacementPolicy.DEPTH_PREFERRED);
+  }
+
+  /**
+   * Creates a table using at most the given number of bytes, rounded down to a power of two number of entries.
+   */
+  public TranspositionTable(long memoryBytes, ReplacementPolicy replacementPolicy) {
+    long maxEntries = Math.max(PROBE_LENGTH, Math.min(memoryBytes / BYTES_PER_ENTRY, 1 << 30));
+    int capacity = Integer.highestOneBit((int) maxEntries);
+    this.data = new long[capacity];
+    this.checkedKeys = new long[capacity];
+    this.mask = capacity - 1;
+    this.replacementPolicy = replacementPolicy;
+  }
+
+  /**
+   * Returns the data word stored for the key with at least the given depth, or zero if there is none.
+   * Use {@link #getValue} and {@link #getMove} to read it.
+   */
+  public long probe(long key, int minDepth) {
+    probes.increment();
+    int index = indexOf(key);
+    for (int i = 0; i < PROBE_LENGTH; i++) {
+      int slot = (index + i) & mask;
+      long entry = data[slot];
+      if (entry != 0 && (checkedKeys[slot] ^ entry) == key) {
+        if (getDepth(entry) < minDepth) {
+          return 0;
+        }
+        hits.increment();
+        return entry;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Stores a result for the key. Pass null as the move for results that don't have one.
+   */
+  public void store(long key, float value, int depth, Direction move) {
+    long entry = Float.floatToRawIntBits(value) & 0xFFFFFFFFL
+            | (long) (Math.min(depth, MAX_DEPTH) + 1) << 32
+            | (long) (move == null ? 0 : move.ordinal() + 1) << 48;
+
+    int index = indexOf(key);
+    int victim = index;
+    int victimDepth = Integer.MAX_VALUE;
+    for (int i = 0; i < PROBE_LENGTH; i++) {
+      int slot = (index + i) & mask;
+      long existing = data[slot];
+      if (existing == 0 || (checkedKeys[slot] ^ existing) == key) {
+        if (existing != 0 && replacementPolicy == ReplacementPolicy.DEPTH_PREFERRED && getDepth(existing) > depth) {
+          return;
+        }
+        victim = slot;
+        break;
+      }
+      int existingDepth = getDepth(existing);
+      if (replacementPolicy == ReplacementPolicy.DEPTH_PREFERRED && existingDepth < victimDepth) {
+        victim = slot;
+        victimDepth = existingDepth;
+      }
+    }
+
+    stores.increment();
+    data[victim] = entry;
+    checkedKeys[victim] = key ^ entry;
+  }
+
+  public static float getValue(long entry) {
+    return Float.intBitsToFloat((int) entry);
+  }
+
+  public static int getDepth(long entry) {
+    return (int) (entry >>> 32 & 0xFFFF) - 1;
+  }
+
+  /**
+   * Returns the ordinal of the stored move, or {@link #NO_MOVE}.
+   */
+  public static int getMove(long entry) {
+    return (int) (entry >>> 48 & 0xFF) - 1;
+  }
+
+  public int getCapacity() {
+    return data.length;
+  }
+
+  public ReplacementPolicy getReplacementPolicy() {
+    return replacementPolicy;
+  }
+
+  public long getProbes() {
+    return probes.sum();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getStores() {
+    return stores.sum();
+  }
+
+  /**
+   * Returns the fraction of probes that found a usable entry.
+   */
+  public float getHitRate() {
+    long numProbes = probes.sum();
+    return numProbes == 0 ? 0 : hits.sum() / (float) numProbes;
+  }
+
+  public void clear() {
+    for (int i = 0; i < data.length; i++) {
+      data[i] = 0;
+      checkedKeys[i] = 0;
+    }
+    probes.reset();
+    hits.reset();
+    stores.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "Entries: " + data.length + " Probes: " + getProbes() + " Hits: " + getHits()
+            + " Hit rate: " + (int) (getHitRate() * 100 + 0.5) + "%";
+  }
+
+  private int indexOf(long key) {
+    // Fibonacci hashing spreads the mostly-zero high cells of early boards over the whole table
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+  }
+}